@@ -0,0 +1,120 @@
+package spl.lae.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import memory.SparseMatrix;
+import parser.OutputWriter;
+import spl.lae.BatchRunner;
+import spl.lae.LinearAlgebraEngine;
+
+/**
+ * A whole job - parse, plan, compute and write - on a warm engine, for a few plan shapes:
+ * chain: A * B * C * D with mismatched dimensions, so the chain order matters
+ * sum: A + B + ... + H
+ * mixed: T(A * B) + (-(C * D)) + A * B, with a repeated subtree and rewritable operators
+ * sparse: A * B + C on operands with 1% non-zero elements
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    @Param({"chain", "sum", "mixed", "sparse"})
+    public String plan;
+
+    @Param({"128", "512"})
+    public int size;
+
+    @Param({"4"})
+    public int threads;
+
+    private LinearAlgebraEngine engine;
+    private Path input;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        engine = new LinearAlgebraEngine(threads);
+        input = Inputs.writeTemp("lae-plan", planJson(new Random(42)));
+        output = Files.createTempFile("lae-result", ".json");
+    }
+
+    @TearDown(Level.Trial)
+    public void cleanup() throws IOException, InterruptedException {
+        engine.shutdown();
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(output);
+    }
+
+    @Benchmark
+    public String runJob() throws IOException {
+        String error = BatchRunner.runJob(engine, SparseMatrix.DEFAULT_SPARSE_DENSITY, OutputWriter.Format.COMPACT,
+                input.toString(), output.toString());
+        if (error != null) {
+            throw new IllegalStateException(error);
+        }
+        return error;
+    }
+
+    private String planJson(Random random) {
+        StringBuilder json = new StringBuilder();
+        int n = size;
+        switch (plan) {
+            case "chain":
+                json.append("{\"operator\":\"*\",\"operands\":[");
+                int[] dims = {n, n / 8, n, n / 8, n};
+                for (int i = 0; i < 4; i++) {
+                    json.append(i == 0 ? "" : ",");
+                    Inputs.appendMatrix(json, Inputs.randomMatrix(random, dims[i], dims[i + 1], 1.0));
+                }
+                return json.append("]}").toString();
+            case "sum":
+                json.append("{\"operator\":\"+\",\"operands\":[");
+                for (int i = 0; i < 8; i++) {
+                    json.append(i == 0 ? "" : ",");
+                    Inputs.appendMatrix(json, Inputs.randomMatrix(random, n, n, 1.0));
+                }
+                return json.append("]}").toString();
+            case "mixed":
+                String product = product(random, n, 1.0);
+                return "{\"operator\":\"+\",\"operands\":["
+                        + "{\"operator\":\"T\",\"operands\":[" + product + "]},"
+                        + "{\"operator\":\"-\",\"operands\":[" + product(random, n, 1.0) + "]},"
+                        + product + "]}";
+            default:
+                return "{\"operator\":\"+\",\"operands\":[" + product(random, n, 0.01) + ","
+                        + matrixJson(random, n, 0.01) + "]}";
+        }
+    }
+
+    private static String product(Random random, int n, double density) {
+        return "{\"operator\":\"*\",\"operands\":[" + matrixJson(random, n, density) + "," + matrixJson(random, n, density) + "]}";
+    }
+
+    private static String matrixJson(Random random, int n, double density) {
+        StringBuilder json = new StringBuilder();
+        Inputs.appendMatrix(json, Inputs.randomMatrix(random, n, n, density));
+        return json.toString();
+    }
+}
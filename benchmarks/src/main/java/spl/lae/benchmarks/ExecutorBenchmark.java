@@ -0,0 +1,76 @@
+package spl.lae.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import scheduling.SchedulingMode;
+import scheduling.TiredExecutor;
+
+/**
+ * Dispatch overhead of TiredExecutor: a batch of tasks that do (almost) nothing, so the time measured
+ * is the cost of queueing, stealing and completing them. Divide by the batch size for the cost per task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExecutorBenchmark {
+
+    @Param({"1", "4", "8"})
+    public int threads;
+
+    @Param({"1", "100", "10000"})
+    public int tasks;
+
+    @Param({"FATIGUE", "CALIBRATED"})
+    public SchedulingMode scheduling;
+
+    private TiredExecutor executor;
+    private List<Runnable> batch;
+    private final LongAdder done = new LongAdder();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        executor = new TiredExecutor(threads, scheduling);
+        batch = new ArrayList<>(tasks);
+        for (int i = 0; i < tasks; i++) {
+            batch.add(done::increment);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void submitAll(Blackhole blackhole) {
+        executor.submitAll(batch);
+        blackhole.consume(done.sum());
+    }
+
+    @Benchmark
+    public void submitAllAsync(Blackhole blackhole) {
+        executor.submitAllAsync(batch).join();
+        blackhole.consume(done.sum());
+    }
+}
@@ -0,0 +1,59 @@
+package spl.lae.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Deterministic random inputs shared by the benchmarks.
+ */
+final class Inputs {
+
+    private Inputs() {
+    }
+
+    static double[] randomArray(Random random, int length) {
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = random.nextInt(19) - 9;
+        }
+        return values;
+    }
+
+    // a rows x cols matrix in which about density of the elements are not zero
+    static double[][] randomMatrix(Random random, int rows, int cols, double density) {
+        double[][] matrix = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                if (density >= 1.0 || random.nextDouble() < density) {
+                    matrix[i][j] = random.nextInt(19) - 9;
+                }
+            }
+        }
+        return matrix;
+    }
+
+    // the matrix as a JSON array of arrays
+    static void appendMatrix(StringBuilder json, double[][] matrix) {
+        json.append('[');
+        for (int i = 0; i < matrix.length; i++) {
+            json.append(i == 0 ? "[" : ",[");
+            for (int j = 0; j < matrix[i].length; j++) {
+                if (j > 0) {
+                    json.append(',');
+                }
+                json.append(matrix[i][j]);
+            }
+            json.append(']');
+        }
+        json.append(']');
+    }
+
+    static Path writeTemp(String prefix, String contents) throws IOException {
+        Path file = Files.createTempFile(prefix, ".json");
+        file.toFile().deleteOnExit();
+        Files.writeString(file, contents);
+        return file;
+    }
+}
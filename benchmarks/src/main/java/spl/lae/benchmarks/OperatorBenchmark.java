@@ -0,0 +1,90 @@
+package spl.lae.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import memory.SharedMatrix;
+import memory.SparseMatrix;
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+import spl.lae.LinearAlgebraEngine;
+
+/**
+ * LinearAlgebraEngine.loadAndCompute of a single operator on size x size operands, for every operator,
+ * thread count and storage. Operators consume their operands in place, so every invocation gets a fresh
+ * node, built outside the measured time. Sparse operands have 1% non-zero elements.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperatorBenchmark {
+
+    @Param({"ADD", "SUBTRACT", "MULTIPLY", "NEGATE", "TRANSPOSE"})
+    public ComputationNodeType operator;
+
+    @Param({"64", "256", "1024"})
+    public int size;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"dense", "sparse"})
+    public String storage;
+
+    private LinearAlgebraEngine engine;
+    private double[][] left;
+    private double[][] right;
+    private ComputationNode node;
+
+    @Setup(Level.Trial)
+    public void createEngine() {
+        engine = new LinearAlgebraEngine(threads);
+        Random random = new Random(42);
+        double density = storage.equals("sparse") ? 0.01 : 1.0;
+        left = Inputs.randomMatrix(random, size, size, density);
+        right = Inputs.randomMatrix(random, size, size, density);
+    }
+
+    @Setup(Level.Invocation)
+    public void createNode() {
+        boolean binary = operator != ComputationNodeType.NEGATE && operator != ComputationNodeType.TRANSPOSE;
+        node = new ComputationNode(operator, binary ? List.of(leaf(left), leaf(right)) : List.of(leaf(left)));
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdownEngine() throws InterruptedException {
+        engine.shutdown();
+    }
+
+    @Benchmark
+    public ComputationNode loadAndCompute() {
+        engine.loadAndCompute(node);
+        return node;
+    }
+
+    private ComputationNode leaf(double[][] matrix) {
+        SharedMatrix dense = new SharedMatrix(matrix);
+        if (storage.equals("sparse")) {
+            return new ComputationNode(SparseMatrix.fromDense(dense));
+        }
+        return new ComputationNode(dense);
+    }
+}
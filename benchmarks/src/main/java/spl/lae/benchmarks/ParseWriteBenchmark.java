@@ -0,0 +1,96 @@
+package spl.lae.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import memory.SharedMatrix;
+import parser.ComputationNode;
+import parser.InputParser;
+import parser.OutputWriter;
+
+/**
+ * Parse and write throughput on a generated size x size matrix: InputParser reading a JSON input holding it,
+ * and OutputWriter writing it in every output format. Divide the file size by the time for bytes per second.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseWriteBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ParseInput {
+
+        @Param({"100", "1000"})
+        public int size;
+
+        private Path input;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            StringBuilder json = new StringBuilder("{\"operator\":\"-\",\"operands\":[");
+            Inputs.appendMatrix(json, Inputs.randomMatrix(new Random(42), size, size, 1.0));
+            input = Inputs.writeTemp("lae-parse", json.append("]}").toString());
+        }
+
+        @TearDown(Level.Trial)
+        public void cleanup() throws IOException {
+            Files.deleteIfExists(input);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class WriteOutput {
+
+        @Param({"100", "1000"})
+        public int size;
+
+        @Param({"PRETTY", "COMPACT", "BINARY"})
+        public OutputWriter.Format format;
+
+        private Path output;
+        private SharedMatrix matrix;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            matrix = new SharedMatrix(Inputs.randomMatrix(new Random(42), size, size, 1.0));
+            matrix.publishSnapshot();
+            output = Files.createTempFile("lae-write", ".out");
+        }
+
+        @TearDown(Level.Trial)
+        public void cleanup() throws IOException {
+            Files.deleteIfExists(output);
+        }
+    }
+
+    @Benchmark
+    public ComputationNode parse(ParseInput state) throws ParseException {
+        return new InputParser().parse(state.input.toString());
+    }
+
+    @Benchmark
+    public Path write(WriteOutput state) throws IOException {
+        OutputWriter.write(state.matrix, state.output.toString(), state.format);
+        return state.output;
+    }
+}
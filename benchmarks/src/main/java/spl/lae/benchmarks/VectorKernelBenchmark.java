@@ -0,0 +1,98 @@
+package spl.lae.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import memory.Kernels;
+import memory.SharedMatrix;
+import memory.SharedVector;
+import memory.VectorOrientation;
+
+/**
+ * The SharedVector kernels on vectors of the given length. add, subtract and negate work in place,
+ * so the values drift from one call to the next - which does not change their cost.
+ * Both kernel implementations are measured; the forked JVM has the vector module enabled for the simd ones.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class VectorKernelBenchmark {
+
+    @Param({"64", "1024", "16384"})
+    public int length;
+
+    @Param({"scalar", "simd"})
+    public String kernels;
+
+    private SharedVector row;
+    private SharedVector otherRow;
+    private SharedVector column;
+    private double[] vecMatMulInput;
+    // a length x 64 matrix stored by columns, for vecMatMul
+    private SharedMatrix matrix;
+
+    @Setup
+    public void setup() {
+        Kernels.select(kernels);
+        Random random = new Random(42);
+        row = new SharedVector(Inputs.randomArray(random, length), VectorOrientation.ROW_MAJOR);
+        otherRow = new SharedVector(Inputs.randomArray(random, length), VectorOrientation.ROW_MAJOR);
+        column = new SharedVector(Inputs.randomArray(random, length), VectorOrientation.COLUMN_MAJOR);
+        vecMatMulInput = Inputs.randomArray(random, length);
+        matrix = new SharedMatrix();
+        matrix.loadColumnMajor(Inputs.randomMatrix(random, length, 64, 1.0));
+    }
+
+    @Benchmark
+    public SharedVector add() {
+        row.add(otherRow);
+        return row;
+    }
+
+    @Benchmark
+    public SharedVector subtract() {
+        row.subtract(otherRow);
+        return row;
+    }
+
+    @Benchmark
+    public SharedVector negate() {
+        row.negate();
+        return row;
+    }
+
+    @Benchmark
+    public double dot() {
+        return row.dot(column);
+    }
+
+    @Benchmark
+    public SharedVector transpose() {
+        row.transpose();
+        row.transpose();
+        return row;
+    }
+
+    @Benchmark
+    public SharedVector vecMatMul() {
+        // a fresh vector every time, since vecMatMul replaces the vector's contents with the (shorter) result
+        SharedVector vector = new SharedVector(vecMatMulInput.clone(), VectorOrientation.ROW_MAJOR);
+        vector.vecMatMul(matrix);
+        return vector;
+    }
+}
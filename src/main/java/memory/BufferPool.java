@@ -0,0 +1,161 @@
+package memory;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of the double[] buffers intermediate matrices are stored in. The storage of an intermediate is
+ * released to the pool once its consumer is done with it, and the next intermediate of about the same size
+ * takes it over, so evaluating plan after plan on one engine stops allocating (and collecting) large arrays.
+ * Buffers are kept in size classes, four per power of two, so a buffer is at most a quarter larger than
+ * the matrix stored in it. At most capacityBytes of idle buffers are kept.
+ */
+public class BufferPool {
+
+    // smaller buffers are cheap to allocate, and are not pooled
+    private static final int MIN_POOLED_LENGTH = 1 << 10;
+
+    // idle buffers by size class (their length)
+    private final Map<Integer, ArrayDeque<double[]>> idle = new HashMap<>();
+    private final long capacityBytes;
+    private long idleBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    // a lock rather than synchronized methods, so a virtual thread waiting for it does not pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public BufferPool(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    public boolean isEnabled() {
+        return capacityBytes > 0;
+    }
+
+    /**
+     * Returns a buffer of at least length doubles, whose contents are left over from its previous use.
+     */
+    public double[] acquire(int length) {
+        if (!isEnabled() || length < MIN_POOLED_LENGTH) {
+            return new double[length];
+        }
+        int size = sizeClass(length);
+        double[] buffer = takeIdle(size);
+        return buffer != null ? buffer : new double[size];
+    }
+
+    /**
+     * Returns a buffer of at least length doubles whose first length doubles are zero, like a new array.
+     */
+    public double[] acquireZeroed(int length) {
+        if (!isEnabled() || length < MIN_POOLED_LENGTH) {
+            return new double[length];
+        }
+        int size = sizeClass(length);
+        double[] buffer = takeIdle(size);
+        if (buffer == null) {
+            return new double[size];
+        }
+        Arrays.fill(buffer, 0, length, 0);
+        return buffer;
+    }
+
+    // an idle buffer of the given size class, or null when there is none
+    private double[] takeIdle(int size) {
+        lock.lock();
+        try {
+            ArrayDeque<double[]> buffers = idle.get(size);
+            double[] buffer = buffers == null ? null : buffers.poll();
+            if (buffer == null) {
+                misses++;
+                return null;
+            }
+            idleBytes -= 8L * size;
+            hits++;
+            return buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gives a buffer back to the pool. Nothing may read or write it afterwards. Buffers that did not come
+     * from the pool, and buffers that would take the pool over its capacity, are left to the garbage collector.
+     */
+    public void release(double[] buffer) {
+        if (!isEnabled() || buffer.length < MIN_POOLED_LENGTH || sizeClass(buffer.length) != buffer.length) {
+            return;
+        }
+        long bytes = 8L * buffer.length;
+        lock.lock();
+        try {
+            if (idleBytes + bytes > capacityBytes) {
+                return;
+            }
+            idle.computeIfAbsent(buffer.length, k -> new ArrayDeque<>()).push(buffer);
+            idleBytes += bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops idle buffers (to the garbage collector) until at most maxIdleBytes of them are left, e.g. to
+     * make room for live data. A negative maxIdleBytes drops them all.
+     */
+    public void trim(long maxIdleBytes) {
+        lock.lock();
+        try {
+            for (ArrayDeque<double[]> buffers : idle.values()) {
+                while (idleBytes > maxIdleBytes && !buffers.isEmpty()) {
+                    idleBytes -= 8L * buffers.pop().length;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // acquisitions served by an idle buffer
+    public long hits() {
+        lock.lock();
+        try {
+            return hits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // acquisitions that had to allocate a new buffer
+    public long misses() {
+        lock.lock();
+        try {
+            return misses;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long idleBytes() {
+        lock.lock();
+        try {
+            return idleBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // length rounded up to the next size class: lengths are rounded to a multiple of a quarter of the
+    // largest power of two below them. lengths whose class would not fit an array are not rounded
+    static int sizeClass(int length) {
+        if (length <= 4) {
+            return length;
+        }
+        int step = Integer.highestOneBit(length - 1) >> 2;
+        long size = ((long) length + step - 1) / step * step;
+        return size > Integer.MAX_VALUE - 8 ? length : (int) size;
+    }
+}
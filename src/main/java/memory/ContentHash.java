@@ -0,0 +1,85 @@
+package memory;
+
+/**
+ * 128-bit hash of a matrix' contents: its dimensions and every element that is not +0.0, by position.
+ * The elements are combined by addition, so the hash does not depend on the order they are visited in -
+ * a matrix has the same hash whether it is stored by rows, by columns, dense or sparse.
+ */
+public class ContentHash {
+
+    private ContentHash() {
+    }
+
+    public static long[] of(SharedMatrix matrix) {
+        int rows = matrix.rows();
+        int cols = matrix.cols();
+        long[] hash = start(rows, cols);
+        double[] data = matrix.data();
+        boolean byRows = matrix.getOrientation() == VectorOrientation.ROW_MAJOR;
+        int vectorCount = byRows ? rows : cols;
+        int vectorLength = matrix.vectorLength();
+        for (int v = 0; v < vectorCount; v++) {
+            int base = v * vectorLength;
+            for (int e = 0; e < vectorLength; e++) {
+                double value = data[base + e];
+                if (Double.doubleToRawLongBits(value) != 0) {
+                    long position = byRows ? (long) v * cols + e : (long) e * cols + v;
+                    addElement(hash, position, value);
+                }
+            }
+        }
+        return hash;
+    }
+
+    public static long[] of(SparseMatrix matrix) {
+        int cols = matrix.cols();
+        long[] hash = start(matrix.rows(), cols);
+        int[] pointers = matrix.pointers();
+        int[] indices = matrix.indices();
+        double[] values = matrix.values();
+        boolean byRows = matrix.getOrientation() == VectorOrientation.ROW_MAJOR;
+        int vectorLength = byRows ? cols : matrix.rows();
+        for (int v = 0; v < pointers.length - 1; v++) {
+            if (matrix.hasNegativeZeros()) {
+                // every missing element is a -0.0, which is hashed like any other element
+                int p = pointers[v];
+                for (int e = 0; e < vectorLength; e++) {
+                    double value = p < pointers[v + 1] && indices[p] == e ? values[p++] : -0.0;
+                    if (Double.doubleToRawLongBits(value) != 0) {
+                        long position = byRows ? (long) v * cols + e : (long) e * cols + v;
+                        addElement(hash, position, value);
+                    }
+                }
+                continue;
+            }
+            for (int p = pointers[v]; p < pointers[v + 1]; p++) {
+                // sparse storage keeps every stored element, including -0.0
+                if (Double.doubleToRawLongBits(values[p]) != 0) {
+                    long position = byRows ? (long) v * cols + indices[p] : (long) indices[p] * cols + v;
+                    addElement(hash, position, values[p]);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Mixes the bits of z (the splitmix64 finalizer), so that close inputs give unrelated outputs.
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long[] start(int rows, int cols) {
+        return new long[] {mix(rows * 0x9E3779B97F4A7C15L + cols), mix(cols * 0xC2B2AE3D27D4EB4FL - rows)};
+    }
+
+    // the two halves are independent hashes of the element
+    private static void addElement(long[] hash, long position, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        hash[0] += mix(position * 0x9E3779B97F4A7C15L ^ bits);
+        hash[1] += mix((bits + 0x165667B19E3779F9L) * 0xC2B2AE3D27D4EB4FL ^ Long.rotateLeft(position, 29));
+    }
+}
@@ -0,0 +1,125 @@
+package memory;
+
+import java.util.Arrays;
+
+/**
+ * Cache-blocked matrix multiplication over the contiguous storage of SharedMatrix.
+ * The product is computed one output tile at a time: a KC-deep panel of the right matrix is
+ * packed into NR-wide strips (sized to stay in L1), an MC-high block of the left matrix is
+ * packed into MR-high strips (sized to stay in L2), and an MR x NR micro-kernel keeps its
+ * partial sums in registers while it walks both packed strips (see VectorKernels.multiplyStrips).
+ * Operands may be stored in either orientation - packing reads them through their strides.
+ */
+public class GemmKernel {
+
+    public static final int MR = 4; // rows of the register tile
+    public static final int NR = 4; // columns of the register tile
+    public static final int KC = 256; // depth of a packed panel: KC x NR doubles of the right matrix fit in L1
+    public static final int MC = 64; // rows of the left matrix packed per block: MC x KC doubles fit in L2
+
+    // packing buffers are reused by each worker thread across tiles instead of being allocated per task
+    private static final ThreadLocal<double[]> packedLeft = ThreadLocal.withInitial(() -> new double[MC * KC]);
+    private static final ThreadLocal<double[]> packedRight = ThreadLocal.withInitial(() -> new double[0]);
+    // and so is the scratch register tile edge tiles are computed into
+    private static final ThreadLocal<double[]> edgeTile = ThreadLocal.withInitial(() -> new double[MR * NR]);
+
+    private GemmKernel() {
+    }
+
+    /**
+     * Computes rows [rowStart, rowEnd) x columns [colStart, colEnd) of left * right into out,
+     * which holds the whole product row after row (right.cols() doubles per row).
+     * Different tiles write disjoint parts of out, so tiles may run concurrently.
+     */
+    public static void multiplyTile(SharedMatrix left, SharedMatrix right, double[] out,
+                                    int rowStart, int rowEnd, int colStart, int colEnd) {
+        int depth = left.cols();
+        if (depth != right.rows()) {
+            throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch"); //throwing exception if left cols and right rows are not equal
+        }
+        int outCols = right.cols();
+        // element (i, j) of a matrix lives at data[i * rowStep + j * colStep]
+        double[] a = left.data();
+        int aRowStep = left.getOrientation() == VectorOrientation.ROW_MAJOR ? left.vectorLength() : 1;
+        int aColStep = left.getOrientation() == VectorOrientation.ROW_MAJOR ? 1 : left.vectorLength();
+        double[] b = right.data();
+        int bRowStep = right.getOrientation() == VectorOrientation.ROW_MAJOR ? right.vectorLength() : 1;
+        int bColStep = right.getOrientation() == VectorOrientation.ROW_MAJOR ? 1 : right.vectorLength();
+
+        int tileCols = colEnd - colStart;
+        int panelStrips = (tileCols + NR - 1) / NR;
+        VectorKernels kernels = Kernels.active();
+        double[] packA = packedLeft.get();
+        double[] packB = packedRight.get();
+        double[] edge = edgeTile.get();
+        if (packB.length < panelStrips * NR * KC) {
+            packB = new double[panelStrips * NR * KC];
+            packedRight.set(packB);
+        }
+
+        // walking the shared dimension one panel at a time, so each panel of right is packed once per tile
+        for (int pc = 0; pc < depth; pc += KC) {
+            int kc = Math.min(KC, depth - pc);
+            packPanel(b, bRowStep, bColStep, pc, kc, colStart, colEnd, packB);
+            for (int ic = rowStart; ic < rowEnd; ic += MC) {
+                int mc = Math.min(MC, rowEnd - ic);
+                packBlock(a, aRowStep, aColStep, ic, mc, pc, kc, packA);
+                for (int jr = 0; jr < tileCols; jr += NR) {
+                    for (int ir = 0; ir < mc; ir += MR) {
+                        microKernel(kernels, packA, (ir / MR) * MR * kc, packB, (jr / NR) * NR * kc, kc,
+                                out, outCols, ic + ir, Math.min(MR, mc - ir), colStart + jr, Math.min(NR, tileCols - jr), edge);
+                    }
+                }
+            }
+        }
+    }
+
+    // packing rows [rowStart, rowStart + mc) x depth [pc, pc + kc) of the left matrix into MR-high strips,
+    // stored depth by depth so the micro-kernel reads them sequentially. missing rows are padded with zeros
+    private static void packBlock(double[] a, int rowStep, int colStep, int rowStart, int mc, int pc, int kc, double[] dest) {
+        int pos = 0;
+        for (int ir = 0; ir < mc; ir += MR) {
+            for (int p = 0; p < kc; p++) {
+                int base = (pc + p) * colStep;
+                for (int r = 0; r < MR; r++) {
+                    dest[pos++] = ir + r < mc ? a[(rowStart + ir + r) * rowStep + base] : 0;
+                }
+            }
+        }
+    }
+
+    // packing depth [pc, pc + kc) x columns [colStart, colEnd) of the right matrix into NR-wide strips,
+    // stored depth by depth so the micro-kernel reads them sequentially. missing columns are padded with zeros
+    private static void packPanel(double[] b, int rowStep, int colStep, int pc, int kc, int colStart, int colEnd, double[] dest) {
+        int pos = 0;
+        for (int jr = colStart; jr < colEnd; jr += NR) {
+            for (int p = 0; p < kc; p++) {
+                int base = (pc + p) * rowStep;
+                for (int c = 0; c < NR; c++) {
+                    dest[pos++] = jr + c < colEnd ? b[base + (jr + c) * colStep] : 0;
+                }
+            }
+        }
+    }
+
+    // multiplying one MR-high strip of packA by one NR-wide strip of packB, and adding the valid rows x cols
+    // of the MR x NR result into out. edge tiles are computed into the scratch tile edge first
+    private static void microKernel(VectorKernels kernels, double[] packA, int aPos, double[] packB, int bPos, int kc,
+                                    double[] out, int outCols, int row, int rows, int col, int cols, double[] edge) {
+        if (rows == MR && cols == NR) {
+            // full register tile - the common case
+            kernels.multiplyStrips(packA, aPos, packB, bPos, kc, out, outCols, row, col);
+            return;
+        }
+        // edge tile - only part of the register tile is inside the matrix
+        // (the kernel adds into it, so it is cleared first)
+        Arrays.fill(edge, 0);
+        kernels.multiplyStrips(packA, aPos, packB, bPos, kc, edge, NR, 0, 0);
+        for (int r = 0; r < rows; r++) {
+            int o = (row + r) * outCols + col;
+            for (int j = 0; j < cols; j++) {
+                out[o + j] += edge[r * NR + j];
+            }
+        }
+    }
+}
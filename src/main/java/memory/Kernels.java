@@ -0,0 +1,54 @@
+package memory;
+
+/**
+ * Holds the kernel implementation the operators use. It is chosen at startup with -Dlae.kernels=simd|scalar
+ * (scalar by default), and may be switched while running, e.g. to compare both on the same workload.
+ * The simd kernels need the JVM to run with --add-modules jdk.incubator.vector, without it the scalar
+ * kernels are used.
+ */
+public final class Kernels {
+
+    private static final VectorKernels SCALAR = new ScalarKernels();
+    private static volatile VectorKernels active = SCALAR;
+
+    private Kernels() {
+    }
+
+    // the kernels in use. callers read it once per operation and keep it for their loops
+    public static VectorKernels active() {
+        return active;
+    }
+
+    /**
+     * Switches to the named kernels ("simd" or "scalar") and returns the ones actually in use,
+     * which are the scalar kernels when simd is asked for but the vector module is not available.
+     */
+    public static VectorKernels select(String name) {
+        if (name.equalsIgnoreCase("simd")) {
+            VectorKernels simd = loadSimd();
+            active = simd != null ? simd : SCALAR;
+        } else if (name.equalsIgnoreCase("scalar")) {
+            active = SCALAR;
+        } else {
+            throw new IllegalArgumentException("error: unknown kernels " + name + ": expected simd or scalar");
+        }
+        return active;
+    }
+
+    // whether the simd kernels can be used in this JVM
+    public static boolean isSimdAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    // SimdKernels refers to jdk.incubator.vector, so it is only loaded once the module is known to be there
+    private static VectorKernels loadSimd() {
+        if (!isSimdAvailable()) {
+            return null;
+        }
+        try {
+            return new SimdKernels();
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package memory;
+
+/**
+ * A matrix that can be read row by row, whatever its storage is (dense, sparse or out of core).
+ * Used by the writers, which emit the result one row at a time.
+ */
+public interface ReadableMatrix {
+
+    int rows();
+
+    int cols();
+
+    /**
+     * Copies row i of the matrix into dest, which holds at least cols() elements.
+     */
+    void readRow(int i, double[] dest);
+}
@@ -0,0 +1,70 @@
+package memory;
+
+/**
+ * Plain loops, left to the JIT to optimize. Always available.
+ */
+public class ScalarKernels implements VectorKernels {
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+
+    @Override
+    public void add(double[] dest, int destPos, double[] src, int srcPos, int length) {
+        for (int i = 0; i < length; i++) {
+            dest[destPos + i] += src[srcPos + i];
+        }
+    }
+
+    @Override
+    public void subtract(double[] dest, int destPos, double[] src, int srcPos, int length) {
+        for (int i = 0; i < length; i++) {
+            dest[destPos + i] -= src[srcPos + i];
+        }
+    }
+
+    @Override
+    public void negate(double[] dest, int pos, int length) {
+        for (int i = pos; i < pos + length; i++) {
+            dest[i] = -dest[i];
+        }
+    }
+
+    @Override
+    public double dot(double[] a, int aPos, double[] b, int bPos, int length) {
+        double sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += a[aPos + i] * b[bPos + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void multiplyStrips(double[] packA, int aPos, double[] packB, int bPos, int kc,
+                               double[] out, int outCols, int row, int col) {
+        // the MR x NR partial sums are kept in local variables, so they stay in registers
+        double c00 = 0, c01 = 0, c02 = 0, c03 = 0;
+        double c10 = 0, c11 = 0, c12 = 0, c13 = 0;
+        double c20 = 0, c21 = 0, c22 = 0, c23 = 0;
+        double c30 = 0, c31 = 0, c32 = 0, c33 = 0;
+        for (int p = 0; p < kc; p++) {
+            double a0 = packA[aPos], a1 = packA[aPos + 1], a2 = packA[aPos + 2], a3 = packA[aPos + 3];
+            double b0 = packB[bPos], b1 = packB[bPos + 1], b2 = packB[bPos + 2], b3 = packB[bPos + 3];
+            c00 += a0 * b0; c01 += a0 * b1; c02 += a0 * b2; c03 += a0 * b3;
+            c10 += a1 * b0; c11 += a1 * b1; c12 += a1 * b2; c13 += a1 * b3;
+            c20 += a2 * b0; c21 += a2 * b1; c22 += a2 * b2; c23 += a2 * b3;
+            c30 += a3 * b0; c31 += a3 * b1; c32 += a3 * b2; c33 += a3 * b3;
+            aPos += GemmKernel.MR;
+            bPos += GemmKernel.NR;
+        }
+        int o = row * outCols + col;
+        out[o] += c00; out[o + 1] += c01; out[o + 2] += c02; out[o + 3] += c03;
+        o += outCols;
+        out[o] += c10; out[o + 1] += c11; out[o + 2] += c12; out[o + 3] += c13;
+        o += outCols;
+        out[o] += c20; out[o + 1] += c21; out[o + 2] += c22; out[o + 3] += c23;
+        o += outCols;
+        out[o] += c30; out[o + 1] += c31; out[o + 2] += c32; out[o + 3] += c33;
+    }
+}
@@ -1,10 +1,21 @@
 package memory;
 
-public class SharedMatrix {
+import monitoring.MatrixTransferEvent;
 
-    private volatile SharedVector[] vectors = {}; // underlying vectors
+public class SharedMatrix implements ReadableMatrix {
+
+    // underlying vectors. the whole matrix is kept in one contiguous array, vector after vector,
+    // and vector i is a view over the slice [i * vectorLength, (i + 1) * vectorLength) of it
+    private volatile SharedVector[] vectors = {};
     // added field: matrix orientation
     private VectorOrientation MatrixOrientation = VectorOrientation.ROW_MAJOR;
+    // added fields: the contiguous storage the vectors view, and the stride between two vectors in it
+    private double[] data = new double[0];
+    private int vectorLength = 0;
+    // added field: set once the matrix is published as an immutable snapshot (see publishSnapshot)
+    private volatile boolean snapshot = false;
+    // vectors handled together by addCrossOrientation: one cache line of each of them is in use at a time
+    private static final int CROSS_BLOCK = 32;
 
     public SharedMatrix() {
         // notice the matrix is initialized as empty matrix in vectors field.
@@ -15,80 +26,237 @@ public class SharedMatrix {
     }
     
     public void loadRowMajor(double[][] matrix) {
+        MatrixTransferEvent event = new MatrixTransferEvent();
+        event.begin();
         //we dont need to lock the matrix because no thread "knows" the loaded matrix and old matrix is irrelevant
         // initializing this.orientation and vectors according to given matrix
         this.MatrixOrientation = VectorOrientation.ROW_MAJOR;
-        this.vectors = new SharedVector[matrix.length];
-        // looping through matrix row vectors and loading them to this.vectors in the
-        // matching slot
-        for (int i = 0; i < matrix.length; i++) {
-            this.vectors[i] = new SharedVector(matrix[i], VectorOrientation.ROW_MAJOR);
+        int matrixRows = matrix.length;
+        int matrixCols = matrixRows == 0 ? 0 : matrix[0].length;
+        // copying all rows one after the other into a single contiguous array
+        double[] flat = new double[matrixRows * matrixCols];
+        for (int i = 0; i < matrixRows; i++) {
+            if (matrix[i].length != matrixCols) {
+                throw new IllegalArgumentException("error: Illegal operation: inconsistent row sizes");
+            }
+            System.arraycopy(matrix[i], 0, flat, i * matrixCols, matrixCols);
+        }
+        publish(flat, matrixRows, matrixCols, VectorOrientation.ROW_MAJOR);
+        event.report("loadRowMajor", matrixRows, matrixCols, VectorOrientation.ROW_MAJOR.name());
+    }
+
+    /**
+     * Replaces the internal data with a row-major matrix that is already stored contiguously,
+     * row after row, in flat. No copy is made - the rows become views over flat.
+     */
+    public void loadRowMajor(double[] flat, int rows, int cols) {
+        if (flat.length < rows * cols) {
+            throw new IllegalArgumentException("error: Illegal operation: storage is smaller than the matrix");
         }
+        this.MatrixOrientation = VectorOrientation.ROW_MAJOR;
+        publish(flat, rows, cols, VectorOrientation.ROW_MAJOR);
     }
 
     public void loadColumnMajor(double[][] matrix) {
+        MatrixTransferEvent event = new MatrixTransferEvent();
+        event.begin();
         //we dont need to lock the matrix because no thread "knows" the loaded matrix and old matrix is irrelevant
         // initializing this.orientation according to given matrix
         this.MatrixOrientation = VectorOrientation.COLUMN_MAJOR;
 
         if (matrix.length == 0) { // making sure "int matrixCols = matrix[0].length;" will not crash
-            this.vectors = new SharedVector[0];
+            publish(new double[0], 0, 0, VectorOrientation.COLUMN_MAJOR);
             return;
         }
         int matrixRow = matrix.length;
         int matrixCols = matrix[0].length;// legit because we made sure matrix[0]!=null
 
-        // initializing vectors sized matrixCol
-        vectors = new SharedVector[matrixCols];
-        // For each column, initialize a new array represented as row, and insert the
-        // relevant values
-        for (int i = 0; i < matrixCols; i++) {
-            double[] ColElements = new double[matrixRow];
-            for (int j = 0; j < matrixRow; j++) {
-                ColElements[j] = matrix[j][i];
+        // storing column i in the slice [i * matrixRow, (i + 1) * matrixRow) of one contiguous array.
+        // scanning the given matrix row by row so the reads are sequential
+        double[] flat = new double[matrixRow * matrixCols];
+        for (int j = 0; j < matrixRow; j++) {
+            double[] row = matrix[j];
+            if (row.length != matrixCols) {
+                throw new IllegalArgumentException("error: Illegal operation: inconsistent row sizes");
+            }
+            for (int i = 0; i < matrixCols; i++) {
+                flat[i * matrixRow + j] = row[i];
             }
-            // Inserting the arrays into the matrix
-            this.vectors[i] = new SharedVector(ColElements, VectorOrientation.COLUMN_MAJOR);
         }
+        publish(flat, matrixCols, matrixRow, VectorOrientation.COLUMN_MAJOR);
+        event.report("loadColumnMajor", matrixRow, matrixCols, VectorOrientation.COLUMN_MAJOR.name());
+    }
+
+    // creating the vector views over the contiguous storage and making them visible
+    private void publish(double[] flat, int vectorCount, int vectorLength, VectorOrientation orientation) {
+        SharedVector[] views = new SharedVector[vectorCount];
+        for (int i = 0; i < vectorCount; i++) {
+            views[i] = new SharedVector(flat, i * vectorLength, vectorLength, orientation);
+        }
+        this.data = flat;
+        this.vectorLength = vectorLength;
+        this.vectors = views; // volatile write last, so whoever sees the vectors sees the storage as well
+    }
+
+    /**
+     * Publishes this matrix as an immutable snapshot. Called by the owner once no task writes it anymore
+     * (after the executor batch that computed it is done, which also makes its contents visible), from
+     * then on reads skip the vector locks entirely.
+     */
+    public void publishSnapshot() {
+        this.snapshot = true;
+    }
+
+    /**
+     * Takes a published snapshot back for writing. Only the single owner of the matrix may do this - in a
+     * computation tree that is the parent node that consumes it - and reads take the vector locks again.
+     */
+    public void claimForWriting() {
+        this.snapshot = false;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
     }
 
     public double[][] readRowMajor() {
+        MatrixTransferEvent event = new MatrixTransferEvent();
+        event.begin();
         // keeping vectors in current variable to make sure we keep read from the right vectors
         SharedVector[] currVectors = this.vectors;
+        // a snapshot has no writers, so no locks are needed to read it
+        boolean locked = !snapshot;
         // locking all readlocks of curr vectors because we are about to read the elements from matrix (so no one can write other values)
-        acquireAllVectorReadLocks(currVectors);                                    
+        if (locked) {
+            acquireAllVectorReadLocks(currVectors);
+        }
         double[][] resultMatrix;
         try {
             if (currVectors.length == 0) { // if vectors is empty return empty matrix
                 return new double[0][0];
             }
+            int vecLen = currVectors[0].length();
             // case 1: matrix is rows major
             if (MatrixOrientation == VectorOrientation.ROW_MAJOR) {
                 // initializing resultMatrix
-                resultMatrix = new double[currVectors.length][currVectors[0].length()];
-                // filling resultMatrix:
+                resultMatrix = new double[currVectors.length][vecLen];
+                // filling resultMatrix: each row is a contiguous slice, so it is copied in bulk.
+                // (a vector might have been replaced by vecMatMul, so we read through the vector itself)
                 for (int i = 0; i < currVectors.length; i++) {
-                    for (int j = 0; j < currVectors[0].length(); j++) {
-                        resultMatrix[i][j] = currVectors[i].get(j);
-                    }
+                    currVectors[i].copyTo(resultMatrix[i], 0);
                 }
             } else {
                 // case 2: matrix is column major
                 // initializing resultMatrix - opposite to case 1: rows is columns and columns is rows
-                resultMatrix = new double[currVectors[0].length()][currVectors.length];
+                resultMatrix = new double[vecLen][currVectors.length];
                 // filling resultMatrix: Note: running over each vector to efficiently scan all the array before moving to the next one
                 for (int j = 0; j < currVectors.length; j++) {
-                    for (int i = 0; i < currVectors[0].length(); i++) {
-                        resultMatrix[i][j] = currVectors[j].get(i);
-                    }
+                    currVectors[j].copyToColumn(resultMatrix, j);
                 }
             }
             return resultMatrix;
         } finally { //after reading everything and returning the resultmatrix - unlock all readerslocks
-            releaseAllVectorReadLocks(currVectors); 
+            if (locked) {
+                releaseAllVectorReadLocks(currVectors);
+            }
+            event.report("readRowMajor", rows(), cols(), MatrixOrientation.name());
+        }
+    }
+
+    /**
+     * Copies row i of the matrix into dest, whichever way the matrix is stored, so a caller can walk
+     * the matrix row by row without materializing all of it.
+     */
+    public void readRow(int i, double[] dest) {
+        SharedVector[] currVectors = this.vectors;
+        boolean locked = !snapshot;
+        if (MatrixOrientation == VectorOrientation.ROW_MAJOR) {
+            // the row is one vector - a single bulk copy
+            SharedVector row = currVectors[i];
+            if (locked) {
+                row.readLock();
+            }
+            try {
+                row.copyTo(dest, 0);
+            } finally {
+                if (locked) {
+                    row.readUnlock();
+                }
+            }
+            return;
+        }
+        // the row crosses all column vectors: element j is at the same position i of every column
+        if (locked) {
+            acquireAllVectorReadLocks(currVectors);
+        }
+        try {
+            for (int j = 0; j < currVectors.length; j++) {
+                dest[j] = currVectors[j].get(i);
+            }
+        } finally {
+            if (locked) {
+                releaseAllVectorReadLocks(currVectors);
+            }
         }
     }
 
+    /**
+     * Returns a new matrix holding a copy of this one, physically stored in the given orientation.
+     * Used when an operand is stored the other way than the kernel consuming it needs.
+     */
+    public SharedMatrix copyAs(VectorOrientation orientation) {
+        return copyAs(orientation, new double[rows() * cols()]);
+    }
+
+    /**
+     * Like copyAs(orientation), copying into the given storage (e.g. a pooled buffer) instead of a new array.
+     * The storage may be longer than the matrix, and its contents are overwritten.
+     */
+    public SharedMatrix copyAs(VectorOrientation orientation, double[] flat) {
+        MatrixTransferEvent event = new MatrixTransferEvent();
+        event.begin();
+        int rows = rows();
+        int cols = cols();
+        if (flat.length < rows * cols) {
+            throw new IllegalArgumentException("error: Illegal operation: storage is smaller than the matrix");
+        }
+        // element (i, j) of this matrix lives at data[i * rowStep + j * colStep]
+        int rowStep = MatrixOrientation == VectorOrientation.ROW_MAJOR ? vectorLength : 1;
+        int colStep = MatrixOrientation == VectorOrientation.ROW_MAJOR ? 1 : vectorLength;
+        SharedMatrix copy = new SharedMatrix();
+        if (orientation == VectorOrientation.ROW_MAJOR) {
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < cols; j++) {
+                    flat[i * cols + j] = data[i * rowStep + j * colStep];
+                }
+            }
+            copy.loadRowMajor(flat, rows, cols);
+        } else {
+            for (int j = 0; j < cols; j++) {
+                for (int i = 0; i < rows; i++) {
+                    flat[j * rows + i] = data[i * rowStep + j * colStep];
+                }
+            }
+            copy.MatrixOrientation = VectorOrientation.COLUMN_MAJOR;
+            copy.publish(flat, cols, rows, VectorOrientation.COLUMN_MAJOR);
+        }
+        event.report("copyAs", rows, cols, orientation.name());
+        return copy;
+    }
+
+    /**
+     * Returns the transpose of this matrix as a view over the same storage: the vectors that were rows
+     * are read as columns (or the other way around), so nothing is copied.
+     */
+    public SharedMatrix transposedView() {
+        VectorOrientation flipped = MatrixOrientation == VectorOrientation.ROW_MAJOR ? VectorOrientation.COLUMN_MAJOR : VectorOrientation.ROW_MAJOR;
+        SharedMatrix view = new SharedMatrix();
+        view.MatrixOrientation = flipped;
+        view.publish(data, vectors.length, vectorLength, flipped);
+        view.snapshot = snapshot;
+        return view;
+    }
+
     public SharedVector get(int index) {
         return vectors[index];
     }
@@ -101,6 +269,60 @@ public class SharedMatrix {
         return this.MatrixOrientation;
     }
 
+    // number of rows of the matrix, whichever way it is stored
+    public int rows() {
+        if (MatrixOrientation == VectorOrientation.ROW_MAJOR) {
+            return vectors.length;
+        }
+        return vectors.length == 0 ? 0 : vectorLength;
+    }
+
+    // number of columns of the matrix, whichever way it is stored
+    public int cols() {
+        if (MatrixOrientation == VectorOrientation.COLUMN_MAJOR) {
+            return vectors.length;
+        }
+        return vectors.length == 0 ? 0 : vectorLength;
+    }
+
+    /**
+     * Adds sign * other to vectors [vectorStart, vectorEnd) of this matrix, where other holds the same
+     * dimensions but is stored the other way (this by rows and other by columns, or the other way around),
+     * so nothing has to be copied into a common orientation first. Vector v of this matrix meets element v
+     * of every vector of other: the vectors are taken in small blocks and every vector of other is read once
+     * per block, in runs of consecutive elements. The caller holds the locks of the vectors involved.
+     */
+    public void addCrossOrientation(SharedMatrix other, double sign, int vectorStart, int vectorEnd) {
+        if (other.rows() != rows() || other.cols() != cols()) {
+            throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+        }
+        if (other.MatrixOrientation == MatrixOrientation) {
+            throw new IllegalArgumentException("error: Illegal operation: operands are stored the same way");
+        }
+        double[] otherData = other.data;
+        int otherStride = other.vectorLength;
+        for (int block = vectorStart; block < vectorEnd; block += CROSS_BLOCK) {
+            int blockEnd = Math.min(vectorEnd, block + CROSS_BLOCK);
+            for (int j = 0; j < vectorLength; j++) {
+                int otherBase = j * otherStride;
+                for (int v = block; v < blockEnd; v++) {
+                    data[v * vectorLength + j] += sign * otherData[otherBase + v];
+                }
+            }
+        }
+    }
+
+    // contiguous storage of the loaded matrix, used by kernels that work on the whole matrix at once.
+    // notice: vecMatMul replaces a vector's storage, after which this array no longer reflects that vector
+    double[] data() {
+        return data;
+    }
+
+    // stride between the first elements of two consecutive vectors inside data()
+    int vectorLength() {
+        return vectorLength;
+    }
+
     private void acquireAllVectorReadLocks(SharedVector[] vecs) {
         for (int i = 0; i < vecs.length; i++) {
             vecs[i].readLock();
@@ -1,31 +1,67 @@
 package memory;
 
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 
+import monitoring.Metrics;
+
+/**
+ * A SharedVector is a lightweight view over a contiguous slice of a backing double[].
+ * Vectors of the same SharedMatrix share one backing array, each one owning the slice
+ * [offset, offset + length).
+ */
 public class SharedVector {
 
-    private double[] vector;
+    private double[] vector; // backing array (may be shared with other vectors of the same matrix)
+    private int offset; // index of this vector's first element inside the backing array
+    private int length; // number of elements in this vector
     private VectorOrientation orientation;
     private ReadWriteLock lock = new java.util.concurrent.locks.ReentrantReadWriteLock();
 
     public SharedVector(double[] vector, VectorOrientation orientation) {
+        this(vector, 0, vector.length, orientation); // a standalone vector is a view over the whole array
+    }
+
+    public SharedVector(double[] vector, int offset, int length, VectorOrientation orientation) {
         this.orientation = orientation; // storing orientation in matching field
-        this.vector = vector; // due to efficiency and to avoid holding unnecesary vectors
+        this.vector = vector; // due to efficiency and to avoid holding unnecesary vectors - no copy is made
+        this.offset = offset;
+        this.length = length;
     }
 
     public double get(int index) {
-        return vector[index];
+        return vector[offset + index];
     }
 
     public int length() {
-        return vector.length;
+        return length;
     }
 
     public VectorOrientation getOrientation() {
         return orientation;
     }
 
+    /**
+     * Copies this vector's elements into dest, starting at destPos, as one bulk copy.
+     */
+    public void copyTo(double[] dest, int destPos) {
+        System.arraycopy(vector, offset, dest, destPos, length);
+    }
+
+    /**
+     * Copies this vector's elements into column col of dest, one element per row.
+     */
+    public void copyToColumn(double[][] dest, int col) {
+        for (int i = 0; i < length; i++) {
+            dest[i][col] = vector[offset + i];
+        }
+    }
+
     public void writeLock() {
+        if (Metrics.ENABLED) {
+            timedLock(lock.writeLock());
+            return;
+        }
         lock.writeLock().lock(); // accessing lock's writelock and locking it.
     }
 
@@ -34,9 +70,24 @@ public class SharedVector {
     }
 
     public void readLock() {
+        if (Metrics.ENABLED) {
+            timedLock(lock.readLock());
+            return;
+        }
         lock.readLock().lock(); // accessing lock's readlock and locking it.
     }
 
+    // locking with metrics on: an uncontended lock is taken without reading the clock,
+    // only a lock we actually block on is timed and recorded as lock wait
+    private static void timedLock(Lock l) {
+        if (l.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        l.lock();
+        Metrics.recordLockWait(System.nanoTime() - start);
+    }
+
     public void readUnlock() {
         lock.readLock().unlock(); // accessing lock's readlock and unlocking it.
     }
@@ -51,21 +102,49 @@ public class SharedVector {
     }
 
     public void add(SharedVector other) {
+        add(other, 0, length);
+    }
+
+    /**
+     * Adds elements [from, to) of other to the same elements of this vector, so a long vector can be
+     * split between several tasks.
+     */
+    public void add(SharedVector other, int from, int to) {
+        checkRange(other, from, to);
+        // working straight on the backing arrays of both slices instead of calling get() per element
+        Kernels.active().add(this.vector, offset + from, other.vector, other.offset + from, to - from);
+    }
+
+    public void subtract(SharedVector other) {
+        subtract(other, 0, length);
+    }
+
+    // subtracts elements [from, to) of other from the same elements of this vector
+    public void subtract(SharedVector other, int from, int to) {
+        checkRange(other, from, to);
+        // same as add, fused with the negation of other, so -other is never materialized
+        Kernels.active().subtract(this.vector, offset + from, other.vector, other.offset + from, to - from);
+    }
+
+    private void checkRange(SharedVector other, int from, int to) {
         if (this.length() != other.length()) {
             throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch"); //throwing exception if size of vectors is not right
         }
         if (this.getOrientation() != other.getOrientation()) {
             throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch"); //throwing exception if both vectors are not same "type" (column \ row)
         }
-        for (int i = 0; i < vector.length; i++) {
-            this.vector[i] = this.vector[i] + other.get(i); //summing values to this.vector in matching elemnt slots
+        if (from < 0 || to > length || from > to) {
+            throw new IllegalArgumentException("error: Illegal operation: index out of bounds");
         }
     }
 
     public void negate() {
-        for (int i = 0; i < vector.length; i++) { // negating each element in the vector
-            vector[i] = -vector[i];
-        }
+        negate(0, length);
+    }
+
+    // negating elements [from, to) of the vector's slice
+    public void negate(int from, int to) {
+        Kernels.active().negate(vector, offset + from, to - from);
     }
 
     public double dot(SharedVector other) {
@@ -78,11 +157,7 @@ public class SharedVector {
         if (other.getOrientation() == VectorOrientation.ROW_MAJOR) {
             throw new IllegalArgumentException("error: Illegal operation: right vector is a row vector"); //throwing exception if right vector is not in the right "type"  (row * column)
         }
-        double sum=0;
-        for(int i=0; i<vector.length;i++){
-            sum+= this.vector[i]*other.vector[i];        
-        }
-        return sum;
+        return Kernels.active().dot(this.vector, offset, other.vector, other.offset, length);
     }
 
     public void vecMatMul(SharedMatrix matrix) {
@@ -92,11 +167,11 @@ public class SharedVector {
         }
         //throwing exception if the vector isn't row.
         if (this.orientation != VectorOrientation.ROW_MAJOR) {
-            throw new IllegalArgumentException("error: Vector must be row type"); 
+            throw new IllegalArgumentException("error: Vector must be row type");
         }
         //throwing exception if the matrix isn't column.
         if (matrix.getOrientation() != VectorOrientation.COLUMN_MAJOR) {
-            throw new IllegalArgumentException("error: Matrix must be column type"); 
+            throw new IllegalArgumentException("error: Matrix must be column type");
         }
         //creating temp vector for the calculation
         double[] res = new double [matrix.length()];
@@ -104,7 +179,10 @@ public class SharedVector {
         for (int i = 0 ; i < matrix.length() ; i++) {
             res[i] = this.dot(matrix.get(i));
         }
-        // updating vector to be the result
+        // updating vector to be the result - the result length may differ from the current slice,
+        // so this vector stops viewing the shared backing array and owns the result instead
         this.vector = res;
+        this.offset = 0;
+        this.length = res.length;
     }
-}
\ No newline at end of file
+}
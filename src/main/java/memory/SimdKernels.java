@@ -0,0 +1,123 @@
+package memory;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Kernels on the Java Vector API (jdk.incubator.vector), processing a full hardware vector of doubles per
+ * instruction. Only loaded when the JVM runs with --add-modules jdk.incubator.vector (see Kernels).
+ * Sums are only reordered by dot, which keeps several accumulators to break the dependency between
+ * consecutive additions; every other kernel gives the same results as the scalar one.
+ * The register tile of multiplyStrips is a 256-bit vector per row: on hardware whose vectors are narrower
+ * (NEON, SSE only) that shape is not compiled to vector instructions, and the scalar micro-kernel is used.
+ */
+public class SimdKernels implements VectorKernels {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    // one row of the MR x NR register tile (NR = 4 doubles)
+    private static final VectorSpecies<Double> TILE_ROW = DoubleVector.SPECIES_256;
+    // whether the hardware has vectors as wide as a tile row, so TILE_ROW vectors map to single registers
+    private static final boolean WIDE_VECTORS = SPECIES.vectorBitSize() >= TILE_ROW.vectorBitSize();
+    private static final ScalarKernels SCALAR = new ScalarKernels();
+
+    @Override
+    public String name() {
+        return "simd";
+    }
+
+    @Override
+    public void add(double[] dest, int destPos, double[] src, int srcPos, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, dest, destPos + i)
+                    .add(DoubleVector.fromArray(SPECIES, src, srcPos + i))
+                    .intoArray(dest, destPos + i);
+        }
+        // the tail that does not fill a whole vector
+        for (; i < length; i++) {
+            dest[destPos + i] += src[srcPos + i];
+        }
+    }
+
+    @Override
+    public void subtract(double[] dest, int destPos, double[] src, int srcPos, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, dest, destPos + i)
+                    .sub(DoubleVector.fromArray(SPECIES, src, srcPos + i))
+                    .intoArray(dest, destPos + i);
+        }
+        for (; i < length; i++) {
+            dest[destPos + i] -= src[srcPos + i];
+        }
+    }
+
+    @Override
+    public void negate(double[] dest, int pos, int length) {
+        int i = 0;
+        for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, dest, pos + i).neg().intoArray(dest, pos + i);
+        }
+        for (; i < length; i++) {
+            dest[pos + i] = -dest[pos + i];
+        }
+    }
+
+    @Override
+    public double dot(double[] a, int aPos, double[] b, int bPos, int length) {
+        // four independent accumulators, so consecutive multiply-adds do not wait for each other
+        int step = SPECIES.length();
+        DoubleVector acc0 = DoubleVector.zero(SPECIES);
+        DoubleVector acc1 = DoubleVector.zero(SPECIES);
+        DoubleVector acc2 = DoubleVector.zero(SPECIES);
+        DoubleVector acc3 = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (int bound = length - 4 * step; i <= bound; i += 4 * step) {
+            acc0 = acc0.add(DoubleVector.fromArray(SPECIES, a, aPos + i).mul(DoubleVector.fromArray(SPECIES, b, bPos + i)));
+            acc1 = acc1.add(DoubleVector.fromArray(SPECIES, a, aPos + i + step).mul(DoubleVector.fromArray(SPECIES, b, bPos + i + step)));
+            acc2 = acc2.add(DoubleVector.fromArray(SPECIES, a, aPos + i + 2 * step).mul(DoubleVector.fromArray(SPECIES, b, bPos + i + 2 * step)));
+            acc3 = acc3.add(DoubleVector.fromArray(SPECIES, a, aPos + i + 3 * step).mul(DoubleVector.fromArray(SPECIES, b, bPos + i + 3 * step)));
+        }
+        for (int bound = SPECIES.loopBound(length); i < bound; i += step) {
+            acc0 = acc0.add(DoubleVector.fromArray(SPECIES, a, aPos + i).mul(DoubleVector.fromArray(SPECIES, b, bPos + i)));
+        }
+        double sum = acc0.add(acc1).add(acc2.add(acc3)).reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aPos + i] * b[bPos + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void multiplyStrips(double[] packA, int aPos, double[] packB, int bPos, int kc,
+                               double[] out, int outCols, int row, int col) {
+        if (!WIDE_VECTORS) {
+            SCALAR.multiplyStrips(packA, aPos, packB, bPos, kc, out, outCols, row, col);
+            return;
+        }
+        // one vector per row of the register tile: each depth step broadcasts the MR left values and
+        // multiplies them by the NR right values at once
+        DoubleVector c0 = DoubleVector.zero(TILE_ROW);
+        DoubleVector c1 = DoubleVector.zero(TILE_ROW);
+        DoubleVector c2 = DoubleVector.zero(TILE_ROW);
+        DoubleVector c3 = DoubleVector.zero(TILE_ROW);
+        for (int p = 0; p < kc; p++) {
+            DoubleVector b = DoubleVector.fromArray(TILE_ROW, packB, bPos);
+            c0 = c0.add(b.mul(packA[aPos]));
+            c1 = c1.add(b.mul(packA[aPos + 1]));
+            c2 = c2.add(b.mul(packA[aPos + 2]));
+            c3 = c3.add(b.mul(packA[aPos + 3]));
+            aPos += GemmKernel.MR;
+            bPos += GemmKernel.NR;
+        }
+        int o = row * outCols + col;
+        DoubleVector.fromArray(TILE_ROW, out, o).add(c0).intoArray(out, o);
+        o += outCols;
+        DoubleVector.fromArray(TILE_ROW, out, o).add(c1).intoArray(out, o);
+        o += outCols;
+        DoubleVector.fromArray(TILE_ROW, out, o).add(c2).intoArray(out, o);
+        o += outCols;
+        DoubleVector.fromArray(TILE_ROW, out, o).add(c3).intoArray(out, o);
+    }
+}
@@ -0,0 +1,190 @@
+package memory;
+
+import java.util.Arrays;
+
+/**
+ * Kernels for operations with at least one sparse operand. Every kernel computes a range of result rows
+ * (or of non-zeros), so a node is split into independent tasks the same way the dense kernels are.
+ * The sparse operands are only ever read, and must be in CSR (ROW_MAJOR) form unless stated otherwise,
+ * so the work of every kernel is proportional to the non-zeros it visits rather than to the matrix size.
+ */
+public class SparseKernels {
+
+    private SparseKernels() {
+    }
+
+    /**
+     * Appends rows [block.rowStart(), block.rowEnd()) of left + sign * right to block,
+     * merging the two sorted rows. Elements that cancel out are dropped. A missing element takes part as the
+     * value of its operand's missing elements, like it would in the dense sum, so e.g. a stored -0.0 plus
+     * a missing +0.0 is +0.0. The result's missing elements are -0.0 when sumHasNegativeZeros says so.
+     */
+    public static void addRows(SparseMatrix left, SparseMatrix right, double sign, SparseRowBlock block) {
+        int[] lp = left.pointers(), li = left.indices(), rp = right.pointers(), ri = right.indices();
+        double[] lv = left.values(), rv = right.values();
+        double leftMissing = left.missingValue(), rightMissing = right.missingValue();
+        double missing = sumHasNegativeZeros(left, right, sign) ? -0.0 : 0.0;
+        for (int i = block.rowStart(); i < block.rowEnd(); i++) {
+            int p = lp[i], pEnd = lp[i + 1];
+            int q = rp[i], qEnd = rp[i + 1];
+            while (p < pEnd || q < qEnd) {
+                int lj = p < pEnd ? li[p] : Integer.MAX_VALUE;
+                int rj = q < qEnd ? ri[q] : Integer.MAX_VALUE;
+                int j = Math.min(lj, rj);
+                double sum = (lj == j ? lv[p++] : leftMissing) + sign * (rj == j ? rv[q++] : rightMissing);
+                if (SparseMatrix.isStored(sum, missing)) {
+                    block.append(j, sum);
+                }
+            }
+            block.endRow();
+        }
+    }
+
+    // whether the elements of left + sign * right that are missing from both are -0.0: only when both terms
+    // are -0.0, as in the dense sum
+    public static boolean sumHasNegativeZeros(SparseMatrix left, SparseMatrix right, double sign) {
+        return SparseMatrix.isStored(left.missingValue() + sign * right.missingValue());
+    }
+
+    /**
+     * Computes rows [rowStart, rowEnd) of dense = (negateDense ? -dense : dense) + sign * sparse, in place.
+     * dense may be stored either way. Only the dense elements of the rows are touched, so tasks working on
+     * different row ranges never write the same element. When sign times the missing elements of the sparse
+     * operand is +0.0, they are added as well, which turns a -0.0 of the dense operand into +0.0 the way the
+     * dense sum does (adding -0.0 changes nothing).
+     */
+    public static void addToDense(SparseMatrix sparse, double sign, SharedMatrix dense, boolean negateDense,
+                                  int rowStart, int rowEnd) {
+        double[] data = dense.data();
+        int cols = dense.cols();
+        // element (i, j) of the dense matrix lives at data[i * rowStep + j * colStep]
+        int rowStep = dense.getOrientation() == VectorOrientation.ROW_MAJOR ? dense.vectorLength() : 1;
+        int colStep = dense.getOrientation() == VectorOrientation.ROW_MAJOR ? 1 : dense.vectorLength();
+        int[] pointers = sparse.pointers(), indices = sparse.indices();
+        double[] values = sparse.values();
+        double missing = sign * sparse.missingValue();
+        for (int i = rowStart; i < rowEnd; i++) {
+            int rowBase = i * rowStep;
+            if (negateDense) {
+                for (int j = 0; j < cols; j++) {
+                    data[rowBase + j * colStep] = -data[rowBase + j * colStep];
+                }
+            }
+            if (!SparseMatrix.isStored(missing)) {
+                // walking the whole row, the stored elements in order
+                int p = pointers[i];
+                for (int j = 0; j < cols; j++) {
+                    double value = p < pointers[i + 1] && indices[p] == j ? sign * values[p++] : missing;
+                    data[rowBase + j * colStep] += value;
+                }
+                continue;
+            }
+            for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                data[rowBase + indices[p] * colStep] += sign * values[p];
+            }
+        }
+    }
+
+    /**
+     * Computes rows [rowStart, rowEnd) of left * right into the row-major out, where left is sparse and
+     * right is a dense ROW_MAJOR matrix: every non-zero left(i, k) adds a scaled row k of right into row i.
+     */
+    public static void multiplyRows(SparseMatrix left, SharedMatrix right, double[] out, int rowStart, int rowEnd) {
+        int[] pointers = left.pointers(), indices = left.indices();
+        double[] values = left.values();
+        double[] data = right.data();
+        int cols = right.cols();
+        int stride = right.vectorLength();
+        for (int i = rowStart; i < rowEnd; i++) {
+            int outBase = i * cols;
+            for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                double a = values[p];
+                int rightBase = indices[p] * stride;
+                for (int j = 0; j < cols; j++) {
+                    out[outBase + j] += a * data[rightBase + j];
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes rows [rowStart, rowEnd) of left * right into the row-major out, where left is dense
+     * (stored either way) and right is sparse: every left(i, k) scatters a scaled sparse row k of right into row i.
+     */
+    public static void multiplyRows(SharedMatrix left, SparseMatrix right, double[] out, int rowStart, int rowEnd) {
+        double[] data = left.data();
+        int inner = left.cols();
+        int cols = right.cols();
+        int rowStep = left.getOrientation() == VectorOrientation.ROW_MAJOR ? left.vectorLength() : 1;
+        int colStep = left.getOrientation() == VectorOrientation.ROW_MAJOR ? 1 : left.vectorLength();
+        int[] pointers = right.pointers(), indices = right.indices();
+        double[] values = right.values();
+        for (int i = rowStart; i < rowEnd; i++) {
+            int outBase = i * cols;
+            for (int k = 0; k < inner; k++) {
+                double a = data[i * rowStep + k * colStep];
+                if (a == 0) {
+                    continue;
+                }
+                for (int p = pointers[k]; p < pointers[k + 1]; p++) {
+                    out[outBase + indices[p]] += a * values[p];
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends rows [block.rowStart(), block.rowEnd()) of left * right to block, both operands sparse
+     * (Gustavson's row-by-row algorithm): the scaled sparse rows of right are accumulated into a dense
+     * row accumulator, and only the columns that were touched are visited when the row is emitted.
+     */
+    public static void multiplyRows(SparseMatrix left, SparseMatrix right, SparseRowBlock block) {
+        int[] lp = left.pointers(), li = left.indices(), rp = right.pointers(), ri = right.indices();
+        double[] lv = left.values(), rv = right.values();
+        int cols = right.cols();
+        double[] accumulator = new double[cols];
+        // marker[j] is the last row column j was touched in, touched lists the columns of the current row
+        int[] marker = new int[cols];
+        Arrays.fill(marker, -1);
+        int[] touched = new int[cols];
+        for (int i = block.rowStart(); i < block.rowEnd(); i++) {
+            int count = 0;
+            for (int p = lp[i]; p < lp[i + 1]; p++) {
+                double a = lv[p];
+                int k = li[p];
+                for (int q = rp[k]; q < rp[k + 1]; q++) {
+                    int j = ri[q];
+                    if (marker[j] != i) {
+                        marker[j] = i;
+                        touched[count++] = j;
+                        // the dense sum starts from +0.0, so a -0.0 term never makes a -0.0 element
+                        accumulator[j] = 0.0 + a * rv[q];
+                    } else {
+                        accumulator[j] += a * rv[q];
+                    }
+                }
+            }
+            // rows are kept sorted by column
+            Arrays.sort(touched, 0, count);
+            for (int t = 0; t < count; t++) {
+                int j = touched[t];
+                if (SparseMatrix.isStored(accumulator[j])) {
+                    block.append(j, accumulator[j]);
+                }
+            }
+            block.endRow();
+        }
+    }
+
+    /**
+     * Writes the negation of the non-zeros [from, to) of source into values, which backs a matrix
+     * sharing source's structure, with the sign of its missing elements flipped (see SparseMatrix.withValues).
+     * source may be compressed either way.
+     */
+    public static void negate(SparseMatrix source, double[] values, int from, int to) {
+        double[] sourceValues = source.values();
+        for (int p = from; p < to; p++) {
+            values[p] = -sourceValues[p];
+        }
+    }
+}
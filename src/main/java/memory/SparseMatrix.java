@@ -0,0 +1,255 @@
+package memory;
+
+import java.util.Arrays;
+
+/**
+ * Compressed sparse matrix: only the non-zero elements are stored. A -0.0 counts as non-zero, so signed
+ * zeros come out of every operator exactly as they do from the dense ones. The elements that are not stored
+ * are +0.0, or -0.0 for a matrix with negative zeros (the negation of a sparse matrix), in which case a
+ * stored +0.0 counts as non-zero instead.
+ * Like SharedMatrix, the matrix is a sequence of vectors - rows when the orientation is ROW_MAJOR (CSR),
+ * columns when it is COLUMN_MAJOR (CSC). The non-zeros of vector v are
+ * indices/values[pointers[v], pointers[v + 1]), sorted by index.
+ * Since CSR of a matrix is exactly CSC of its transpose, transposing only flips the orientation.
+ */
+public class SparseMatrix implements ReadableMatrix {
+
+    // matrices with at most this fraction of non-zero elements are stored sparse by default
+    public static final double DEFAULT_SPARSE_DENSITY = 0.05;
+    // sparse results denser than this are converted back to dense storage - above it the dense kernels win
+    public static final double DENSIFY_DENSITY = 0.3;
+
+    private final int rows;
+    private final int cols;
+    private final VectorOrientation orientation;
+    private final int[] pointers;
+    private final int[] indices;
+    private final double[] values;
+    // the elements that are not stored are -0.0 rather than +0.0
+    private final boolean negativeZeros;
+
+    public SparseMatrix(int rows, int cols, VectorOrientation orientation, int[] pointers, int[] indices, double[] values) {
+        this(rows, cols, orientation, pointers, indices, values, false);
+    }
+
+    /**
+     * Creates a matrix whose elements that are not stored are -0.0 when negativeZeros is set.
+     */
+    public SparseMatrix(int rows, int cols, VectorOrientation orientation, int[] pointers, int[] indices, double[] values,
+                        boolean negativeZeros) {
+        this.rows = rows;
+        this.cols = cols;
+        this.orientation = orientation;
+        this.pointers = pointers;
+        this.indices = indices;
+        this.values = values;
+        this.negativeZeros = negativeZeros;
+    }
+
+    /**
+     * Builds a CSR matrix from a dense row-major matrix stored contiguously in flat.
+     */
+    public static SparseMatrix fromRowMajor(double[] flat, int rows, int cols) {
+        int nonZeros = countNonZeros(flat, rows * cols);
+        int[] pointers = new int[rows + 1];
+        int[] indices = new int[nonZeros];
+        double[] values = new double[nonZeros];
+        int pos = 0;
+        for (int i = 0; i < rows; i++) {
+            int rowStart = i * cols;
+            for (int j = 0; j < cols; j++) {
+                double v = flat[rowStart + j];
+                if (isStored(v)) {
+                    indices[pos] = j;
+                    values[pos++] = v;
+                }
+            }
+            pointers[i + 1] = pos;
+        }
+        return new SparseMatrix(rows, cols, VectorOrientation.ROW_MAJOR, pointers, indices, values);
+    }
+
+    /**
+     * Builds a CSR matrix holding the same elements as the given dense matrix.
+     */
+    public static SparseMatrix fromDense(SharedMatrix dense) {
+        SharedMatrix rowMajor = dense.getOrientation() == VectorOrientation.ROW_MAJOR ? dense : dense.copyAs(VectorOrientation.ROW_MAJOR);
+        return fromRowMajor(rowMajor.data(), rowMajor.rows(), rowMajor.cols());
+    }
+
+    // fraction of the elements of a dense matrix that are not zero
+    public static double density(SharedMatrix dense) {
+        long size = (long) dense.rows() * dense.cols();
+        return size == 0 ? 0 : (double) countNonZeros(dense.data(), (int) size) / size;
+    }
+
+    // number of non-zero elements among the first length elements of flat
+    private static int countNonZeros(double[] flat, int length) {
+        int nonZeros = 0;
+        for (int i = 0; i < length; i++) {
+            if (isStored(flat[i])) {
+                nonZeros++;
+            }
+        }
+        return nonZeros;
+    }
+
+    // whether an element has to be stored: everything but +0.0, the value of the elements that are not
+    static boolean isStored(double value) {
+        return Double.doubleToRawLongBits(value) != 0;
+    }
+
+    // whether an element has to be stored in a matrix whose elements that are not stored are missing
+    static boolean isStored(double value, double missing) {
+        return Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(missing);
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public VectorOrientation getOrientation() {
+        return orientation;
+    }
+
+    public boolean hasNegativeZeros() {
+        return negativeZeros;
+    }
+
+    // the value of the elements that are not stored
+    public double missingValue() {
+        return negativeZeros ? -0.0 : 0.0;
+    }
+
+    public int nonZeros() {
+        return pointers[pointers.length - 1];
+    }
+
+    // fraction of the elements that are stored
+    public double density() {
+        long size = (long) rows * cols;
+        return size == 0 ? 0 : (double) nonZeros() / size;
+    }
+
+    int[] pointers() {
+        return pointers;
+    }
+
+    int[] indices() {
+        return indices;
+    }
+
+    double[] values() {
+        return values;
+    }
+
+    /**
+     * Returns a matrix with the same non-zero structure as this one, holding the given values instead.
+     */
+    public SparseMatrix withValues(double[] newValues) {
+        return withValues(newValues, negativeZeros);
+    }
+
+    /**
+     * Like withValues(double[]), for a matrix whose elements that are not stored are -0.0 when negativeZeros
+     * is set (e.g. the negation of this one, with every stored value negated).
+     */
+    public SparseMatrix withValues(double[] newValues, boolean negativeZeros) {
+        return new SparseMatrix(rows, cols, orientation, pointers, indices, newValues, negativeZeros);
+    }
+
+    /**
+     * Returns the transpose as a view over the same arrays: the CSR of this matrix read as CSC, or the other way.
+     */
+    public SparseMatrix transposedView() {
+        VectorOrientation flipped = orientation == VectorOrientation.ROW_MAJOR ? VectorOrientation.COLUMN_MAJOR : VectorOrientation.ROW_MAJOR;
+        return new SparseMatrix(cols, rows, flipped, pointers, indices, values, negativeZeros);
+    }
+
+    /**
+     * Returns this matrix compressed the given way - itself if it already is,
+     * otherwise a converted copy (a counting sort over the non-zeros).
+     */
+    public SparseMatrix toOrientation(VectorOrientation target) {
+        if (target == orientation) {
+            return this;
+        }
+        int vectorCount = pointers.length - 1;
+        int otherCount = orientation == VectorOrientation.ROW_MAJOR ? cols : rows;
+        int nonZeros = nonZeros();
+        int[] otherPointers = new int[otherCount + 1];
+        for (int p = 0; p < nonZeros; p++) {
+            otherPointers[indices[p] + 1]++;
+        }
+        for (int v = 0; v < otherCount; v++) {
+            otherPointers[v + 1] += otherPointers[v];
+        }
+        int[] next = Arrays.copyOf(otherPointers, otherCount);
+        int[] otherIndices = new int[nonZeros];
+        double[] otherValues = new double[nonZeros];
+        // walking the vectors in order keeps every converted vector sorted by index
+        for (int v = 0; v < vectorCount; v++) {
+            for (int p = pointers[v]; p < pointers[v + 1]; p++) {
+                int dest = next[indices[p]]++;
+                otherIndices[dest] = v;
+                otherValues[dest] = values[p];
+            }
+        }
+        return new SparseMatrix(rows, cols, target, otherPointers, otherIndices, otherValues, negativeZeros);
+    }
+
+    /**
+     * Returns a dense row-major copy of this matrix.
+     */
+    public SharedMatrix toShared() {
+        return toShared(new double[rows * cols]);
+    }
+
+    /**
+     * Like toShared(), storing the dense matrix in flat (e.g. a pooled buffer), whose first rows * cols
+     * elements have to be zero.
+     */
+    public SharedMatrix toShared(double[] flat) {
+        if (flat.length < rows * cols) {
+            throw new IllegalArgumentException("error: Illegal operation: storage is smaller than the matrix");
+        }
+        if (negativeZeros) {
+            Arrays.fill(flat, 0, rows * cols, -0.0);
+        }
+        int vectorCount = pointers.length - 1;
+        for (int v = 0; v < vectorCount; v++) {
+            for (int p = pointers[v]; p < pointers[v + 1]; p++) {
+                if (orientation == VectorOrientation.ROW_MAJOR) {
+                    flat[v * cols + indices[p]] = values[p];
+                } else {
+                    flat[indices[p] * cols + v] = values[p];
+                }
+            }
+        }
+        SharedMatrix dense = new SharedMatrix();
+        dense.loadRowMajor(flat, rows, cols);
+        return dense;
+    }
+
+    @Override
+    public void readRow(int i, double[] dest) {
+        Arrays.fill(dest, 0, cols, missingValue());
+        if (orientation == VectorOrientation.ROW_MAJOR) {
+            for (int p = pointers[i]; p < pointers[i + 1]; p++) {
+                dest[indices[p]] = values[p];
+            }
+            return;
+        }
+        // CSC: looking row i up in every column, by binary search over its sorted indices
+        for (int j = 0; j < cols; j++) {
+            int p = Arrays.binarySearch(indices, pointers[j], pointers[j + 1], i);
+            if (p >= 0) {
+                dest[j] = values[p];
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package memory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The rows [rowStart, rowEnd) of a sparse result, filled by a single task.
+ * A sparse result's number of non-zeros is only known once it is computed, so every task appends
+ * its rows into a block of its own, and the blocks are stitched into one CSR matrix at the end.
+ */
+public class SparseRowBlock {
+
+    private final int rowStart;
+    private final int rowEnd;
+    // rowEnds[r] is the number of non-zeros appended up to the end of row rowStart + r
+    private final int[] rowEnds;
+    private int[] indices = new int[16];
+    private double[] values = new double[16];
+    private int size = 0;
+    private int rowsDone = 0;
+
+    public SparseRowBlock(int rowStart, int rowEnd) {
+        this.rowStart = rowStart;
+        this.rowEnd = rowEnd;
+        this.rowEnds = new int[rowEnd - rowStart];
+    }
+
+    public int rowStart() {
+        return rowStart;
+    }
+
+    public int rowEnd() {
+        return rowEnd;
+    }
+
+    // appends a non-zero to the current row. elements of a row must be appended by increasing index
+    public void append(int index, double value) {
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        indices[size] = index;
+        values[size++] = value;
+    }
+
+    // closes the current row and moves on to the next one
+    public void endRow() {
+        rowEnds[rowsDone++] = size;
+    }
+
+    /**
+     * Stitches blocks covering rows [0, rows) one after the other (in row order) into a single CSR matrix.
+     */
+    public static SparseMatrix assemble(int rows, int cols, List<SparseRowBlock> blocks) {
+        return assemble(rows, cols, blocks, false);
+    }
+
+    /**
+     * Like assemble(int, int, List), for a result whose elements that are not stored are -0.0 when
+     * negativeZeros is set.
+     */
+    public static SparseMatrix assemble(int rows, int cols, List<SparseRowBlock> blocks, boolean negativeZeros) {
+        int nonZeros = 0;
+        for (SparseRowBlock block : blocks) {
+            nonZeros += block.size;
+        }
+        int[] pointers = new int[rows + 1];
+        int[] indices = new int[nonZeros];
+        double[] values = new double[nonZeros];
+        int pos = 0;
+        for (SparseRowBlock block : blocks) {
+            System.arraycopy(block.indices, 0, indices, pos, block.size);
+            System.arraycopy(block.values, 0, values, pos, block.size);
+            for (int r = 0; r < block.rowEnds.length; r++) {
+                pointers[block.rowStart + r + 1] = pos + block.rowEnds[r];
+            }
+            pos += block.size;
+        }
+        return new SparseMatrix(rows, cols, VectorOrientation.ROW_MAJOR, pointers, indices, values, negativeZeros);
+    }
+}
@@ -0,0 +1,98 @@
+package memory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Where the out-of-core matrices of one job are stored (see TiledMatrix): every matrix is a file in a private
+ * subdirectory of the spill directory. A matrix is deleted as soon as its consumer is done with it, and
+ * whatever is left (the result, or everything after a failure) is deleted when the store is closed.
+ */
+public class TileStore implements AutoCloseable {
+
+    // 512 x 512 doubles: 2MB tiles, large enough for the tiled kernels to run at full speed
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    private final Path directory;
+    private final int tileSize;
+    private final AtomicInteger nextFile = new AtomicInteger();
+    private final List<TiledMatrix> created = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Creates a store in a new subdirectory of spillDirectory, whose matrices are stored in tiles of
+     * tileSize x tileSize elements.
+     */
+    public TileStore(Path spillDirectory, int tileSize) throws IOException {
+        Files.createDirectories(spillDirectory);
+        this.directory = Files.createTempDirectory(spillDirectory, "lae-");
+        this.tileSize = tileSize;
+    }
+
+    public int tileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Creates a rows x cols zero matrix in a new file of the store.
+     */
+    public TiledMatrix create(int rows, int cols) {
+        Path path = directory.resolve("matrix-" + nextFile.getAndIncrement() + ".tiles");
+        TiledMatrix matrix;
+        try {
+            matrix = TiledMatrix.create(this, path, rows, cols, tileSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to create an out-of-core matrix in " + directory + ": " + e.getMessage(), e);
+        }
+        lock.lock();
+        try {
+            created.add(matrix);
+        } finally {
+            lock.unlock();
+        }
+        return matrix;
+    }
+
+    /**
+     * Copies a matrix into a new file of the store, row by row.
+     */
+    public TiledMatrix copyOf(ReadableMatrix matrix) {
+        TiledMatrix tiled = create(matrix.rows(), matrix.cols());
+        double[] row = new double[matrix.cols()];
+        for (int i = 0; i < matrix.rows(); i++) {
+            matrix.readRow(i, row);
+            tiled.writeRow(i, row);
+        }
+        return tiled;
+    }
+
+    /**
+     * Deletes every matrix of the store, and its directory. The matrices can't be read afterwards.
+     * Files that can't be deleted are reported and left behind, the job itself is done by then.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            for (TiledMatrix matrix : created) {
+                if (!matrix.delete()) {
+                    System.err.println("could not delete the out-of-core matrix " + matrix.id() + " in " + directory);
+                }
+            }
+            created.clear();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            System.err.println("could not delete " + directory + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package memory;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A matrix stored out of the heap, in a memory-mapped file, as square tiles of tileSize x tileSize elements.
+ * Tiles are stored one after the other, tile row after tile row, and the elements of a tile row after row.
+ * Tiles on the right and bottom edges are padded with zeros, so every tile is read and written whole, and
+ * the padding stays zero through every operator. Operators stream tiles through a few tile-sized buffers,
+ * so the heap holds a few tiles at a time however large the matrix is - the rest is in the page cache.
+ * A transposed view reads the same file with the roles of rows and columns swapped.
+ */
+public class TiledMatrix implements ReadableMatrix {
+
+    // a single mapping is limited to 2GB, so a file is mapped in segments of whole tiles, of at most this many bytes
+    private static final long SEGMENT_BYTES = 1L << 30;
+    // leaves and results get ids of their own (see id())
+    private static final AtomicLong nextId = new AtomicLong();
+
+    // the file and its mappings, shared by a matrix and its transposed views
+    private static class Storage {
+        final TileStore store;
+        final Path path;
+        final long id = nextId.getAndIncrement();
+        final int tileSize;
+        final int tileCols; // tiles per tile row, as stored
+        final int tilesPerSegment;
+        final DoubleBuffer[] segments;
+
+        Storage(TileStore store, Path path, int tileSize, int tileRows, int tileCols) throws IOException {
+            this.store = store;
+            this.path = path;
+            this.tileSize = tileSize;
+            this.tileCols = tileCols;
+            long tileBytes = (long) tileSize * tileSize * Double.BYTES;
+            this.tilesPerSegment = (int) Math.max(1, SEGMENT_BYTES / tileBytes);
+            long tiles = (long) tileRows * tileCols;
+            this.segments = new DoubleBuffer[(int) ((tiles + tilesPerSegment - 1) / tilesPerSegment)];
+            // mapping a region past the end of the file grows the file, which stays sparse until written
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                for (int s = 0; s < segments.length; s++) {
+                    long first = (long) s * tilesPerSegment;
+                    long count = Math.min(tilesPerSegment, tiles - first);
+                    // the file only lives as long as the job, so it is kept in the machine's byte order
+                    segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, first * tileBytes, count * tileBytes)
+                            .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                }
+            }
+        }
+
+        // the segment holding stored tile (ti, tj), and the tile's first element in it
+        DoubleBuffer segment(int ti, int tj) {
+            return segments[(int) (((long) ti * tileCols + tj) / tilesPerSegment)];
+        }
+
+        int offset(int ti, int tj) {
+            return (int) (((long) ti * tileCols + tj) % tilesPerSegment) * tileSize * tileSize;
+        }
+    }
+
+    private final Storage storage;
+    private final int rows;
+    private final int cols;
+    private final boolean transposed;
+
+    private TiledMatrix(Storage storage, int rows, int cols, boolean transposed) {
+        this.storage = storage;
+        this.rows = rows;
+        this.cols = cols;
+        this.transposed = transposed;
+    }
+
+    // creates a zero matrix in a new file at path (see TileStore.create)
+    static TiledMatrix create(TileStore store, Path path, int rows, int cols, int tileSize) throws IOException {
+        if (tileSize <= 0 || (long) tileSize * tileSize * Double.BYTES > SEGMENT_BYTES) {
+            throw new IllegalArgumentException("error: Illegal operation: invalid tile size " + tileSize);
+        }
+        if (rows < 0 || cols < 0) {
+            throw new IllegalArgumentException("error: Illegal operation: invalid dimensions " + rows + "x" + cols);
+        }
+        Storage storage = new Storage(store, path, tileSize, countTiles(rows, tileSize), countTiles(cols, tileSize));
+        return new TiledMatrix(storage, rows, cols, false);
+    }
+
+    private static int countTiles(int length, int tileSize) {
+        return (length + tileSize - 1) / tileSize;
+    }
+
+    @Override
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public int cols() {
+        return cols;
+    }
+
+    public int tileSize() {
+        return storage.tileSize;
+    }
+
+    // number of tile rows of the matrix, as this view sees it
+    public int tileRows() {
+        return countTiles(rows, storage.tileSize);
+    }
+
+    // number of tile columns of the matrix, as this view sees it
+    public int tileCols() {
+        return countTiles(cols, storage.tileSize);
+    }
+
+    // the store that created the matrix, where the results computed from it are created as well
+    public TileStore store() {
+        return storage.store;
+    }
+
+    /**
+     * A number identifying the stored matrix: a matrix and its transposed views have the same id, and
+     * every other matrix has another one. Used instead of a content hash, which would read the whole file.
+     */
+    public long id() {
+        return storage.id;
+    }
+
+    public boolean isTransposed() {
+        return transposed;
+    }
+
+    /**
+     * Returns the transpose of this matrix as a view over the same file, so nothing is copied.
+     */
+    public TiledMatrix transposedView() {
+        return new TiledMatrix(storage, cols, rows, !transposed);
+    }
+
+    /**
+     * Returns the matrix stored the way it is read: itself, or for a transposed view a new matrix of the same
+     * store holding the transpose, copied tile by tile. Reading a transposed view row by row takes an element
+     * of every stored row for each of its rows, so a view is materialized before it is read whole that way.
+     */
+    public TiledMatrix materialize() {
+        if (!transposed) {
+            return this;
+        }
+        TiledMatrix stored = store().create(rows, cols);
+        double[] tile = new double[storage.tileSize * storage.tileSize];
+        for (int ti = 0; ti < tileRows(); ti++) {
+            for (int tj = 0; tj < tileCols(); tj++) {
+                readTile(ti, tj, tile);
+                stored.writeTile(ti, tj, tile);
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Copies tile (ti, tj) of the matrix, as this view sees it, into dest, row after row
+     * (tileSize x tileSize elements, zero outside the matrix).
+     */
+    public void readTile(int ti, int tj, double[] dest) {
+        int size = storage.tileSize;
+        if (!transposed) {
+            storage.segment(ti, tj).get(storage.offset(ti, tj), dest, 0, size * size);
+            return;
+        }
+        // the tile is the transpose of the stored tile (tj, ti), transposed in place once it is read
+        storage.segment(tj, ti).get(storage.offset(tj, ti), dest, 0, size * size);
+        for (int r = 0; r < size; r++) {
+            for (int c = r + 1; c < size; c++) {
+                double value = dest[r * size + c];
+                dest[r * size + c] = dest[c * size + r];
+                dest[c * size + r] = value;
+            }
+        }
+    }
+
+    /**
+     * Overwrites tile (ti, tj) with src, row after row. Elements of src outside the matrix must be zero.
+     * Different tiles may be written concurrently.
+     */
+    public void writeTile(int ti, int tj, double[] src) {
+        checkWritable();
+        int size = storage.tileSize;
+        storage.segment(ti, tj).put(storage.offset(ti, tj), src, 0, size * size);
+    }
+
+    @Override
+    public void readRow(int i, double[] dest) {
+        int size = storage.tileSize;
+        if (!transposed) {
+            // the row is split between the tiles of one tile row, a run of consecutive elements in each
+            int ti = i / size;
+            int r = i % size;
+            for (int tj = 0; tj * size < cols; tj++) {
+                storage.segment(ti, tj).get(storage.offset(ti, tj) + r * size, dest, tj * size, Math.min(size, cols - tj * size));
+            }
+            return;
+        }
+        // row i of the view is column i of the stored matrix: one element of every stored row, so a whole
+        // view is better read from a materialized copy (see materialize)
+        int tj = i / size;
+        int c = i % size;
+        for (int j = 0; j < cols; j++) {
+            int ti = j / size;
+            dest[j] = storage.segment(ti, tj).get(storage.offset(ti, tj) + (j % size) * size + c);
+        }
+    }
+
+    /**
+     * Overwrites row i of the matrix with the first cols() elements of src. Used to fill a matrix that is
+     * given row by row; different rows may be written concurrently.
+     */
+    public void writeRow(int i, double[] src) {
+        checkWritable();
+        int size = storage.tileSize;
+        int ti = i / size;
+        int r = i % size;
+        for (int tj = 0; tj * size < cols; tj++) {
+            storage.segment(ti, tj).put(storage.offset(ti, tj) + r * size, src, tj * size, Math.min(size, cols - tj * size));
+        }
+    }
+
+    // a transposed view is only read: its tiles are not laid out the way the file stores them
+    private void checkWritable() {
+        if (transposed) {
+            throw new IllegalArgumentException("error: Illegal operation: a transposed view can't be written");
+        }
+    }
+
+    /**
+     * Deletes the file once nobody reads the matrix (or any of its views) anymore. The file is truncated
+     * first, so its disk space is freed right away and not only when the garbage collector unmaps it.
+     * A failure is not an error: the store deletes whatever is left of its files when it is closed.
+     */
+    public void release() {
+        try (FileChannel channel = FileChannel.open(storage.path, StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+        } catch (IOException e) {
+            // already gone, or left to the store
+        }
+        delete();
+    }
+
+    // deletes the file without truncating it: tasks of a failed job may still be reading it through their
+    // mappings, which stay valid (and keep the disk space) until they are unmapped
+    boolean delete() {
+        try {
+            Files.deleteIfExists(storage.path);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package memory;
+
+/**
+ * The innermost loops of the dense operators, over slices of double[] storage. There is a plain scalar
+ * implementation and one on the Java Vector API (see Kernels for choosing between them).
+ */
+public interface VectorKernels {
+
+    // name of the implementation, as given to -Dlae.kernels
+    String name();
+
+    // dest[destPos + i] += src[srcPos + i] for i in [0, length)
+    void add(double[] dest, int destPos, double[] src, int srcPos, int length);
+
+    // dest[destPos + i] -= src[srcPos + i] for i in [0, length)
+    void subtract(double[] dest, int destPos, double[] src, int srcPos, int length);
+
+    // dest[pos + i] = -dest[pos + i] for i in [0, length)
+    void negate(double[] dest, int pos, int length);
+
+    // the sum of a[aPos + i] * b[bPos + i] for i in [0, length)
+    double dot(double[] a, int aPos, double[] b, int bPos, int length);
+
+    /**
+     * The GemmKernel micro-kernel: multiplies an MR-high strip of packed left rows by an NR-wide strip of
+     * packed right columns, kc deep, and adds the whole MR x NR result into out at (row, col), where out
+     * holds outCols doubles per row.
+     */
+    void multiplyStrips(double[] packA, int aPos, double[] packB, int bPos, int kc,
+                        double[] out, int outCols, int row, int col);
+}
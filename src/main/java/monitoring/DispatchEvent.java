@@ -0,0 +1,50 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning the time a task waited in a worker's deque: from its submission until a
+ * worker started it. The worker that ran it differs from the one it was queued on when it was stolen.
+ */
+@Name("lae.Dispatch")
+@Label("Task Dispatch")
+@Category({"Linear Algebra Engine", "Scheduler"})
+@Description("Time a task waited from its submission until a worker started it")
+@StackTrace(false)
+public class DispatchEvent extends Event {
+
+    @Label("Assigned Worker")
+    int assignedWorker;
+
+    @Label("Queued Tasks")
+    @Description("Tasks already waiting in the assigned worker's deque")
+    int queuedTasks;
+
+    @Label("Running Worker")
+    int runningWorker;
+
+    @Label("Stolen")
+    boolean stolen;
+
+    /**
+     * Starts timing a task queued on the given worker.
+     */
+    public void start(int assignedWorker, int queuedTasks) {
+        this.assignedWorker = assignedWorker;
+        this.queuedTasks = queuedTasks;
+        begin();
+    }
+
+    public void report(int runningWorker) {
+        if (shouldCommit()) {
+            this.runningWorker = runningWorker;
+            this.stolen = runningWorker != assignedWorker;
+            commit();
+        }
+    }
+}
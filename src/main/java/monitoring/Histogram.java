@@ -0,0 +1,80 @@
+package monitoring;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Lock-free histogram of durations in nanoseconds, with one bucket per power of two:
+ * bucket b counts the values in [2^(b-1), 2^b). Percentiles are reported as the upper bound of the bucket
+ * they fall in, so they are accurate to within a factor of two - enough to tell microseconds from milliseconds.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Adds every value recorded by other into this histogram.
+     */
+    public void merge(Histogram other) {
+        for (int b = 0; b < BUCKETS; b++) {
+            counts.addAndGet(b, other.counts.get(b));
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sum() {
+        return sum.sum();
+    }
+
+    // upper bound of the bucket holding the given fraction of the values
+    public long percentile(double fraction) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= Math.max(1, rank)) {
+                return Math.min(max.get(), b == 0 ? 0 : (1L << b) - 1);
+            }
+        }
+        return max.get();
+    }
+
+    // writes the histogram as a JSON object field
+    void write(JsonGenerator generator, String name) throws IOException {
+        generator.writeObjectFieldStart(name);
+        generator.writeNumberField("count", count());
+        generator.writeNumberField("sumNanos", sum());
+        generator.writeNumberField("p50Nanos", percentile(0.5));
+        generator.writeNumberField("p90Nanos", percentile(0.9));
+        generator.writeNumberField("p99Nanos", percentile(0.99));
+        generator.writeNumberField("maxNanos", max.get());
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,47 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning a bulk copy into or out of a matrix's storage
+ * (loading it from arrays, reading it back to arrays, or re-storing it in another orientation).
+ */
+@Name("lae.MatrixTransfer")
+@Label("Matrix Transfer")
+@Category({"Linear Algebra Engine", "Memory"})
+@Description("Bulk copy of a matrix into or out of its contiguous storage")
+public class MatrixTransferEvent extends Event {
+
+    @Label("Operation")
+    String operation;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Columns")
+    int cols;
+
+    @Label("Orientation")
+    String orientation;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+
+    public void report(String operation, int rows, int cols, String orientation) {
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.rows = rows;
+            this.cols = cols;
+            this.orientation = orientation;
+            this.bytes = (long) rows * cols * Double.BYTES;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package monitoring;
+
+/**
+ * Switch and hooks of the execution metrics. Metrics are collected only when the JVM is started with
+ * -Dlae.metrics=true. The switch is a constant, so with metrics off the JIT removes the checks entirely
+ * and the instrumented code paths cost nothing.
+ */
+public final class Metrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("lae.metrics");
+
+    // the node whose task the current worker is running, to attribute lock waits to
+    static final ThreadLocal<NodeMetrics> CURRENT_NODE = new ThreadLocal<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Records that the current thread was blocked for nanos acquiring a vector lock.
+     * Waits outside of an instrumented task are not attributed to any node, and are dropped.
+     */
+    public static void recordLockWait(long nanos) {
+        NodeMetrics node = CURRENT_NODE.get();
+        if (node != null) {
+            node.recordLockWait(nanos);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning the computation of one node, from loading its operands until its result
+ * is resolved. Like every JFR event it costs next to nothing when no recording is running.
+ */
+@Name("lae.Node")
+@Label("Node Computation")
+@Category({"Linear Algebra Engine", "Engine"})
+@Description("Computation of one node of the plan, from loading its operands until its result is resolved")
+@StackTrace(false)
+public class NodeEvent extends Event {
+
+    @Label("Operator")
+    String operator;
+
+    @Label("Result Rows")
+    int rows;
+
+    @Label("Result Columns")
+    int cols;
+
+    @Label("Tasks")
+    int tasks;
+
+    @Label("Floating Point Operations")
+    @Description("Estimated number of floating point operations of the node (counting only non-zeros of sparse operands)")
+    long flops;
+
+    @Label("Sparse Result")
+    boolean sparse;
+
+    @Label("Result Size")
+    @DataAmount
+    long bytes;
+
+    /**
+     * Sets the node's numbers and commits the event, if it is recorded.
+     */
+    public void report(String operator, int rows, int cols, int tasks, long flops, boolean sparse, long bytes) {
+        if (shouldCommit()) {
+            this.operator = operator;
+            this.rows = rows;
+            this.cols = cols;
+            this.tasks = tasks;
+            this.flops = flops;
+            this.sparse = sparse;
+            this.bytes = bytes;
+            commit();
+        }
+    }
+}
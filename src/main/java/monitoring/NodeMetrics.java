@@ -0,0 +1,99 @@
+package monitoring;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * What one computed node of a plan cost: when it was submitted and finished, how long each of its tasks
+ * waited for a worker and ran, and how long they were blocked on vector locks.
+ * Tasks record into it concurrently, from whichever worker runs them.
+ */
+public class NodeMetrics {
+
+    private final int id;
+    private final String operator;
+    private final String subtree;
+    private final int tasks;
+    private final long submittedNanos;
+    private volatile long finishedNanos;
+    private volatile int rows;
+    private volatile int cols;
+    private volatile int aliases;
+
+    final Histogram queueWait = new Histogram();
+    final Histogram taskTime = new Histogram();
+    final Histogram lockWait = new Histogram();
+    private final LongAdder lockWaitNanos = new LongAdder();
+
+    NodeMetrics(int id, String operator, String subtree, int tasks, long submittedNanos) {
+        this.id = id;
+        this.operator = operator;
+        this.subtree = subtree;
+        this.tasks = tasks;
+        this.submittedNanos = submittedNanos;
+    }
+
+    public String getOperator() {
+        return operator;
+    }
+
+    /**
+     * Wraps a task of this node, so it records how long it waited for a worker and how long it ran
+     * (only the task itself, not what follows the node's batch), and attributes the lock waits of the worker
+     * running it to this node.
+     */
+    public Runnable instrument(Runnable task) {
+        return () -> {
+            long start = System.nanoTime();
+            queueWait.record(start - submittedNanos);
+            NodeMetrics previous = Metrics.CURRENT_NODE.get();
+            Metrics.CURRENT_NODE.set(this);
+            try {
+                task.run();
+            } finally {
+                Metrics.CURRENT_NODE.set(previous);
+                taskTime.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    void recordLockWait(long nanos) {
+        lockWait.record(nanos);
+        lockWaitNanos.add(nanos);
+    }
+
+    /**
+     * Records that the node was resolved with a rows x cols result, shared with the given number of
+     * other nodes computing the same subtree.
+     */
+    public void finish(int rows, int cols, int aliases) {
+        this.rows = rows;
+        this.cols = cols;
+        this.aliases = aliases;
+        this.finishedNanos = System.nanoTime();
+    }
+
+    long wallNanos() {
+        return finishedNanos == 0 ? 0 : finishedNanos - submittedNanos;
+    }
+
+    void write(JsonGenerator generator, long runStartNanos) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("id", id);
+        generator.writeStringField("operator", operator);
+        generator.writeStringField("subtree", subtree);
+        generator.writeNumberField("rows", rows);
+        generator.writeNumberField("cols", cols);
+        generator.writeNumberField("tasks", tasks);
+        generator.writeNumberField("aliases", aliases);
+        generator.writeNumberField("startNanos", submittedNanos - runStartNanos);
+        generator.writeNumberField("wallNanos", wallNanos());
+        generator.writeNumberField("lockWaitNanos", lockWaitNanos.sum());
+        queueWait.write(generator, "queueWait");
+        taskTime.write(generator, "taskTime");
+        lockWait.write(generator, "lockWait");
+        generator.writeEndObject();
+    }
+}
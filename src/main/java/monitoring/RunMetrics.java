@@ -0,0 +1,221 @@
+package monitoring;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import memory.BufferPool;
+import scheduling.TiredExecutor;
+import scheduling.TiredThread;
+
+/**
+ * The metrics of one job: the time spent in each phase (parse, plan, compute, readback, write),
+ * every computed node, the same numbers aggregated per operator, and the state of the workers.
+ * Written as JSON next to the job's result file (see writeJson).
+ */
+public class RunMetrics {
+
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final List<NodeMetrics> nodes = new ArrayList<>();
+    private final AtomicInteger nextNodeId = new AtomicInteger();
+    private TiredExecutor executor;
+    private BufferPool bufferPool;
+    private String error;
+    // intermediate memory of the evaluation (see recordMemory), -1 until a plan is evaluated
+    private long memoryBudgetBytes = -1;
+    private long predictedPeakBytes = -1;
+    private long actualPeakBytes = -1;
+    // a lock rather than synchronized methods, so a virtual thread waiting for it (or writing the report while
+    // holding it) does not pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * Adds nanos to the time spent in the given phase.
+     */
+    public void recordPhase(String phase, long nanos) {
+        lock.lock();
+        try {
+            phases.merge(phase, nanos, Long::sum);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the metrics of a node whose tasks are about to be submitted.
+     * subtree identifies the node's subtree (its structural hash), so a node can be recognized across runs.
+     */
+    public NodeMetrics startNode(String operator, String subtree, int tasks) {
+        NodeMetrics node = new NodeMetrics(nextNodeId.getAndIncrement(), operator, subtree, tasks, System.nanoTime());
+        lock.lock();
+        try {
+            nodes.add(node);
+        } finally {
+            lock.unlock();
+        }
+        return node;
+    }
+
+    // the executor whose workers are described in the report
+    public void setExecutor(TiredExecutor executor) {
+        lock.lock();
+        try {
+            this.executor = executor;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the pool whose use is described in the report
+    public void setBufferPool(BufferPool bufferPool) {
+        lock.lock();
+        try {
+            this.bufferPool = bufferPool;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records the intermediate memory of an evaluated plan: the budget it was evaluated under (0 when there is
+     * none), the peak its evaluation order predicts and the peak it actually reached, counting the idle buffers
+     * of the engine's pool. A job evaluating several plans reports the largest of each.
+     */
+    public void recordMemory(long budgetBytes, long predictedPeak, long actualPeak) {
+        lock.lock();
+        try {
+            memoryBudgetBytes = Math.max(memoryBudgetBytes, budgetBytes);
+            predictedPeakBytes = Math.max(predictedPeakBytes, predictedPeak);
+            actualPeakBytes = Math.max(actualPeakBytes, actualPeak);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setError(String error) {
+        lock.lock();
+        try {
+            this.error = error;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void writeJson(String filePath) throws IOException {
+        lock.lock();
+        try {
+            try (JsonGenerator generator = factory.createGenerator(new File(filePath), JsonEncoding.UTF8)) {
+                generator.useDefaultPrettyPrinter();
+                generator.writeStartObject();
+                if (error != null) {
+                    generator.writeStringField("error", error);
+                }
+                generator.writeObjectFieldStart("phasesNanos");
+                for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                    generator.writeNumberField(phase.getKey(), phase.getValue());
+                }
+                generator.writeEndObject();
+                writeOperators(generator);
+                generator.writeArrayFieldStart("nodes");
+                for (NodeMetrics node : nodes) {
+                    node.write(generator, startNanos);
+                }
+                generator.writeEndArray();
+                writeWorkers(generator);
+                writeBufferPool(generator);
+                writeMemory(generator);
+                generator.writeEndObject();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the node metrics merged per operator type
+    private void writeOperators(JsonGenerator generator) throws IOException {
+        Map<String, List<NodeMetrics>> byOperator = new TreeMap<>();
+        for (NodeMetrics node : nodes) {
+            byOperator.computeIfAbsent(node.getOperator(), k -> new ArrayList<>()).add(node);
+        }
+        generator.writeObjectFieldStart("operators");
+        for (Map.Entry<String, List<NodeMetrics>> entry : byOperator.entrySet()) {
+            Histogram wall = new Histogram();
+            Histogram queueWait = new Histogram();
+            Histogram taskTime = new Histogram();
+            Histogram lockWait = new Histogram();
+            for (NodeMetrics node : entry.getValue()) {
+                wall.record(node.wallNanos());
+                queueWait.merge(node.queueWait);
+                taskTime.merge(node.taskTime);
+                lockWait.merge(node.lockWait);
+            }
+            generator.writeObjectFieldStart(entry.getKey());
+            generator.writeNumberField("nodes", entry.getValue().size());
+            wall.write(generator, "nodeWall");
+            queueWait.write(generator, "queueWait");
+            taskTime.write(generator, "taskTime");
+            lockWait.write(generator, "lockWait");
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+    }
+
+    // cumulative numbers of the engine's buffer pool - shared by every job run on the same engine
+    private void writeBufferPool(JsonGenerator generator) throws IOException {
+        if (bufferPool == null || !bufferPool.isEnabled()) {
+            return;
+        }
+        generator.writeObjectFieldStart("bufferPool");
+        generator.writeNumberField("hits", bufferPool.hits());
+        generator.writeNumberField("misses", bufferPool.misses());
+        generator.writeNumberField("idleBytes", bufferPool.idleBytes());
+        generator.writeEndObject();
+    }
+
+    private void writeMemory(JsonGenerator generator) throws IOException {
+        if (actualPeakBytes < 0) {
+            return;
+        }
+        generator.writeObjectFieldStart("memory");
+        generator.writeNumberField("budgetBytes", memoryBudgetBytes);
+        generator.writeNumberField("predictedPeakBytes", predictedPeakBytes);
+        generator.writeNumberField("actualPeakBytes", actualPeakBytes);
+        // (the actual peak includes the idle buffers of the pool, these are the ones left at the end)
+        generator.writeNumberField("poolIdleBytes", bufferPool == null ? 0 : bufferPool.idleBytes());
+        generator.writeEndObject();
+    }
+
+    // cumulative numbers of the engine's workers - shared by every job run on the same engine
+    private void writeWorkers(JsonGenerator generator) throws IOException {
+        if (executor == null) {
+            return;
+        }
+        generator.writeStringField("scheduling", executor.getMode().name().toLowerCase());
+        generator.writeArrayFieldStart("workers");
+        for (TiredThread worker : executor.getWorkers()) {
+            generator.writeStartObject();
+            generator.writeNumberField("id", worker.getWorkerId());
+            generator.writeNumberField("workNanos", worker.getTimeUsed());
+            generator.writeNumberField("idleNanos", worker.getTimeIdle());
+            generator.writeNumberField("fatigue", worker.getFatigue());
+            generator.writeNumberField("queuedTasks", worker.getQueuedTasks());
+            generator.writeNumberField("queuedCost", worker.getQueuedCost());
+            generator.writeNumberField("relativeSpeed", worker.getRelativeSpeed());
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+}
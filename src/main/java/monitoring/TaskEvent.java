@@ -0,0 +1,47 @@
+package monitoring;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight recorder event spanning the run of one task on a worker. What the engine does once a node's batch is
+ * done (resolving the node and starting its parent) runs off the workers, so it is not part of any task's span.
+ */
+@Name("lae.Task")
+@Label("Task")
+@Category({"Linear Algebra Engine", "Scheduler"})
+@Description("One task run by a worker")
+@StackTrace(false)
+public class TaskEvent extends Event {
+
+    @Label("Worker")
+    int workerId;
+
+    @Label("Fatigue At Dispatch")
+    @Description("The worker's fatigue when it took the task")
+    double fatigue;
+
+    @Label("Failed")
+    @Description("The task threw, whether the worker caught it or the task's batch did")
+    boolean failed;
+
+    /**
+     * Starts timing a task taken by the given worker.
+     */
+    public void start(int workerId, double fatigue) {
+        this.workerId = workerId;
+        this.fatigue = fatigue;
+        begin();
+    }
+
+    public void report(boolean failed) {
+        if (shouldCommit()) {
+            this.failed = failed;
+            commit();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package parser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+
+import memory.ReadableMatrix;
+import memory.SharedMatrix;
+import memory.TiledMatrix;
+import memory.TileStore;
+
+/**
+ * Binary matrix file: a 16 byte header followed by the raw elements, row after row.
+ * Header (all little-endian int32): magic "LAEM", rows, cols, dtype (1 = float64, 2 = float32).
+ * Elements are little-endian values of the given dtype.
+ * Files are read through FileChannel.map and copied into SharedMatrix storage in bulk,
+ * with no per-element parsing - or, for out-of-core execution, streamed into tiled storage (see readTiled).
+ */
+public class BinaryMatrixFile {
+
+    public static final int MAGIC = 0x4D45414C; // "LAEM" read as a little-endian int
+    public static final int HEADER_BYTES = 16;
+    public static final int DTYPE_FLOAT64 = 1;
+    public static final int DTYPE_FLOAT32 = 2;
+
+    // a single mapping is limited to 2GB, so large files are mapped and copied in chunks of this many bytes
+    private static final long MAP_CHUNK_BYTES = 1L << 30;
+    // buffer used when writing a matrix, row by row
+    private static final int WRITE_BUFFER_BYTES = 1 << 16;
+
+    private BinaryMatrixFile() {
+    }
+
+    public static SharedMatrix read(Path path) throws IOException, ParseException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = readHeader(channel, path);
+            long elements = (long) header.rows * header.cols;
+            if (elements > Integer.MAX_VALUE - 8) {
+                throw new ParseException("Binary matrix is too large: " + path, 0);
+            }
+            int elementBytes = header.elementBytes;
+            double[] flat = new double[(int) elements];
+            // copying one mapped chunk at a time, each in bulk
+            long chunkElements = MAP_CHUNK_BYTES / elementBytes;
+            for (long start = 0; start < elements; start += chunkElements) {
+                int count = (int) Math.min(chunkElements, elements - start);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + start * elementBytes, (long) count * elementBytes);
+                chunk.order(ByteOrder.LITTLE_ENDIAN);
+                copyElements(chunk, header.dtype, flat, (int) start, count);
+            }
+            SharedMatrix matrix = new SharedMatrix();
+            matrix.loadRowMajor(flat, header.rows, header.cols);
+            return matrix;
+        }
+    }
+
+    /**
+     * Reads the matrix into a new out-of-core matrix of store, mapping a few rows of the file at a time,
+     * so the matrix may be far larger than the heap: only one row is held in memory at a time.
+     */
+    public static TiledMatrix readTiled(Path path, TileStore store) throws IOException, ParseException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Header header = readHeader(channel, path);
+            int elementBytes = header.elementBytes;
+            long rowBytes = (long) header.cols * elementBytes;
+            // a band of rows fills one tile row, unless that is more than a mapping can hold
+            int bandRows = (int) Math.max(1, Math.min(store.tileSize(), MAP_CHUNK_BYTES / Math.max(1, rowBytes)));
+            TiledMatrix matrix = store.create(header.rows, header.cols);
+            double[] row = new double[header.cols];
+            for (int first = 0; first < header.rows; first += bandRows) {
+                int count = Math.min(bandRows, header.rows - first);
+                MappedByteBuffer band = channel.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_BYTES + first * rowBytes, count * rowBytes);
+                band.order(ByteOrder.LITTLE_ENDIAN);
+                for (int r = 0; r < count; r++) {
+                    copyElements(band.slice((int) (r * rowBytes), (int) rowBytes).order(ByteOrder.LITTLE_ENDIAN),
+                            header.dtype, row, 0, header.cols);
+                    matrix.writeRow(first + r, row);
+                }
+            }
+            return matrix;
+        }
+    }
+
+    // the dimensions and element type of a binary matrix file, validated against the file's size
+    private static class Header {
+        int rows;
+        int cols;
+        int dtype;
+        int elementBytes;
+    }
+
+    private static Header readHeader(FileChannel channel, Path path) throws IOException, ParseException {
+        if (channel.size() < HEADER_BYTES) {
+            throw new ParseException("Binary matrix file is too short: " + path, 0);
+        }
+        ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytes.getInt(0) != MAGIC) {
+            throw new ParseException("Not a binary matrix file: " + path, 0);
+        }
+        Header header = new Header();
+        header.rows = bytes.getInt(4);
+        header.cols = bytes.getInt(8);
+        header.dtype = bytes.getInt(12);
+        if (header.rows <= 0 || header.cols < 0) {
+            throw new ParseException("Invalid binary matrix dimensions " + header.rows + "x" + header.cols + ": " + path, 0);
+        }
+        if (header.dtype == DTYPE_FLOAT64) {
+            header.elementBytes = Double.BYTES;
+        } else if (header.dtype == DTYPE_FLOAT32) {
+            header.elementBytes = Float.BYTES;
+        } else {
+            throw new ParseException("Unsupported binary matrix dtype " + header.dtype + ": " + path, 12);
+        }
+        if (channel.size() < HEADER_BYTES + (long) header.rows * header.cols * header.elementBytes) {
+            throw new ParseException("Binary matrix file is truncated: " + path, 0);
+        }
+        return header;
+    }
+
+    // copying count elements of the given dtype from the start of a little-endian buffer into dest, in bulk
+    private static void copyElements(ByteBuffer source, int dtype, double[] dest, int destPos, int count) {
+        if (dtype == DTYPE_FLOAT64) {
+            source.asDoubleBuffer().get(dest, destPos, count);
+        } else {
+            // widening float32 to the engine's double storage
+            FloatBuffer floats = source.asFloatBuffer();
+            for (int i = 0; i < count; i++) {
+                dest[destPos + i] = floats.get(i);
+            }
+        }
+    }
+
+    /**
+     * Writes the matrix as float64, reading it one row at a time.
+     */
+    public static void write(ReadableMatrix matrix, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int rows = matrix.rows();
+            int cols = matrix.cols();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(WRITE_BUFFER_BYTES, HEADER_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(rows).putInt(cols).putInt(DTYPE_FLOAT64);
+            double[] row = new double[cols];
+            for (int i = 0; i < rows; i++) {
+                matrix.readRow(i, row);
+                // copying the row into the buffer in bulk, as much as fits each time
+                int j = 0;
+                while (j < cols) {
+                    int count = Math.min(cols - j, buffer.remaining() / Double.BYTES);
+                    if (count == 0) {
+                        drain(channel, buffer);
+                        continue;
+                    }
+                    buffer.asDoubleBuffer().put(row, j, count);
+                    buffer.position(buffer.position() + count * Double.BYTES);
+                    j += count;
+                }
+            }
+            drain(channel, buffer);
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
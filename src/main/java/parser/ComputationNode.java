@@ -2,11 +2,29 @@ package parser;
 
 import java.util.List;
 
+import memory.ReadableMatrix;
+import memory.SharedMatrix;
+import memory.SparseMatrix;
+import memory.TiledMatrix;
+import memory.VectorOrientation;
+
 public class ComputationNode {
 
     private ComputationNodeType nodeType;
     private List<ComputationNode> children = null;
     private double[][] matrix = null; // only used for MATRIX nodes
+    // only used for MATRIX nodes: the matrix as a published snapshot, handed to the parent node as is
+    private SharedMatrix sharedMatrix = null;
+    // only used for MATRIX nodes: the matrix in compressed sparse storage, for mostly-zero matrices
+    private SparseMatrix sparseMatrix = null;
+    // only used for MATRIX nodes: the matrix stored out of core, in a tiled file (out-of-core execution)
+    private TiledMatrix tiledMatrix = null;
+    // set when a transpose of this node was folded into its parent, which then reads this node's
+    // result transposed instead of materializing a TRANSPOSE node (only MULTIPLY parents do that)
+    private boolean transposed = false;
+    // set when this node's matrix is also referenced elsewhere (by a node computing the same subtree, or by
+    // the engine's result cache), so a consumer must copy it instead of writing it in place
+    private boolean shared = false;
 
     public ComputationNode(String operatorStr, List<ComputationNode> children) throws IllegalArgumentException {
         this.nodeType = mapOperator(operatorStr);
@@ -38,6 +56,23 @@ public class ComputationNode {
         this.matrix = matrix;
     }
 
+    public ComputationNode(SharedMatrix matrix) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        // nobody writes a leaf matrix until the node consuming it takes it over
+        matrix.publishSnapshot();
+        this.sharedMatrix = matrix;
+    }
+
+    public ComputationNode(SparseMatrix matrix) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.sparseMatrix = matrix;
+    }
+
+    public ComputationNode(TiledMatrix matrix) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.tiledMatrix = matrix;
+    }
+
     public ComputationNodeType getNodeType() {
         return nodeType;
     }
@@ -46,6 +81,22 @@ public class ComputationNode {
         return children;
     }
 
+    public boolean isTransposed() {
+        return transposed;
+    }
+
+    public void setTransposed(boolean transposed) {
+        this.transposed = transposed;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
     /**
      * Recursively finds the first resolvable node in the tree.
      * A resolvable node is defined as a node that is not of type MATRIX,
@@ -71,6 +122,7 @@ public class ComputationNode {
      * are nested in a left-associative manner.
      * For example, A + B + C becomes (A + B) + C.
      * Effectively, this converts n-ary operations (n > 2) into binary operations.
+     * The engine does not use it: every run is nested by planNesting, which leaves no n-ary node behind.
      */
     public void associativeNesting() {
         if (children != null && children.size() > 2) {
@@ -81,6 +133,118 @@ public class ComputationNode {
         }
     }
 
+    /**
+     * Restructures the whole tree into binary operations before execution, choosing the nesting
+     * by cost instead of always nesting to the left:
+     * a MULTIPLY chain with more than two operands is parenthesized with the classic matrix-chain
+     * dynamic program over the operand dimensions, so (1000x10)(10x1000)(1000x10) becomes
+     * A * (B * C) instead of (A * B) * C, and an ADD chain is split into a balanced tree,
+     * (A + B) + (C + D), so independent additions can run at the same time.
+     * Returns the {rows, cols} dimensions of this node's result.
+     */
+    public int[] planNesting() {
+        if (nodeType == ComputationNodeType.MATRIX) {
+            if (tiledMatrix != null) {
+                return new int[] {tiledMatrix.rows(), tiledMatrix.cols()};
+            }
+            if (sparseMatrix != null) {
+                return new int[] {sparseMatrix.rows(), sparseMatrix.cols()};
+            }
+            if (matrix == null) {
+                return new int[] {sharedMatrix.rows(), sharedMatrix.cols()};
+            }
+            return new int[] {matrix.length, matrix.length == 0 ? 0 : matrix[0].length};
+        }
+        if (children == null || children.isEmpty()) {
+            throw new IllegalArgumentException("error: Illegal operation: operator has no operands");
+        }
+        // planning the children first, so their dimensions are known
+        int[][] shapes = new int[children.size()][];
+        for (int i = 0; i < children.size(); i++) {
+            shapes[i] = children.get(i).planNesting();
+            // a child read transposed by this node contributes its dimensions swapped
+            if (children.get(i).isTransposed()) {
+                shapes[i] = new int[] {shapes[i][1], shapes[i][0]};
+            }
+        }
+        switch (nodeType) {
+            case ADD:
+            case SUBTRACT:
+                for (int[] shape : shapes) {
+                    if (shape[0] != shapes[0][0] || shape[1] != shapes[0][1]) {
+                        throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+                    }
+                }
+                if (nodeType == ComputationNodeType.ADD && children.size() > 2) {
+                    List<ComputationNode> operands = children;
+                    int half = operands.size() / 2;
+                    children = List.of(balancedSum(operands, 0, half), balancedSum(operands, half, operands.size()));
+                }
+                return shapes[0];
+            case MULTIPLY:
+                // dims[i] x dims[i + 1] are the dimensions of operand i
+                int[] dims = new int[shapes.length + 1];
+                dims[0] = shapes[0][0];
+                for (int i = 0; i < shapes.length; i++) {
+                    if (shapes[i][0] != dims[i]) {
+                        throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+                    }
+                    dims[i + 1] = shapes[i][1];
+                }
+                if (children.size() > 2) {
+                    int[][] split = chainSplits(dims);
+                    List<ComputationNode> operands = children;
+                    int k = split[0][operands.size() - 1];
+                    children = List.of(chainProduct(operands, split, 0, k), chainProduct(operands, split, k + 1, operands.size() - 1));
+                }
+                return new int[] {dims[0], dims[shapes.length]};
+            case TRANSPOSE:
+                return new int[] {shapes[0][1], shapes[0][0]};
+            default:
+                return shapes[0];
+        }
+    }
+
+    // builds the sum of operands [from, to) as a balanced tree of binary ADD nodes
+    private static ComputationNode balancedSum(List<ComputationNode> operands, int from, int to) {
+        if (to - from == 1) {
+            return operands.get(from);
+        }
+        int mid = (from + to) / 2;
+        return new ComputationNode(ComputationNodeType.ADD, List.of(balancedSum(operands, from, mid), balancedSum(operands, mid, to)));
+    }
+
+    // matrix-chain order: cost[i][j] is the least number of multiply-adds needed for operands i..j,
+    // and split[i][j] is the k for which (i..k) * (k+1..j) achieves it
+    private static int[][] chainSplits(int[] dims) {
+        int n = dims.length - 1;
+        long[][] cost = new long[n][n];
+        int[][] split = new int[n][n];
+        for (int len = 2; len <= n; len++) {
+            for (int i = 0; i + len - 1 < n; i++) {
+                int j = i + len - 1;
+                cost[i][j] = Long.MAX_VALUE;
+                for (int k = i; k < j; k++) {
+                    long c = cost[i][k] + cost[k + 1][j] + (long) dims[i] * dims[k + 1] * dims[j + 1];
+                    if (c < cost[i][j]) {
+                        cost[i][j] = c;
+                        split[i][j] = k;
+                    }
+                }
+            }
+        }
+        return split;
+    }
+
+    // builds the product of operands i..j (inclusive) following the splits of the matrix-chain order
+    private static ComputationNode chainProduct(List<ComputationNode> operands, int[][] split, int i, int j) {
+        if (i == j) {
+            return operands.get(i);
+        }
+        int k = split[i][j];
+        return new ComputationNode(ComputationNodeType.MULTIPLY, List.of(chainProduct(operands, split, i, k), chainProduct(operands, split, k + 1, j)));
+    }
+
     /**
      * Resolves this node by setting its type to MATRIX and storing the computed matrix.
      */
@@ -88,14 +252,125 @@ public class ComputationNode {
         this.nodeType = ComputationNodeType.MATRIX;
         this.children = null;
         this.matrix = matrix;
+        this.sharedMatrix = null;
+        this.sparseMatrix = null;
+        this.tiledMatrix = null;
+    }
+
+    /**
+     * Resolves this node with a computed matrix that is handed over as is, without copying it.
+     * The matrix is published as a snapshot, so it can be read without locks from now on.
+     */
+    public void resolve(SharedMatrix matrix) {
+        matrix.publishSnapshot();
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.children = null;
+        this.matrix = null;
+        this.sharedMatrix = matrix;
+        this.sparseMatrix = null;
+        this.tiledMatrix = null;
+    }
+
+    /**
+     * Resolves this node with a computed sparse matrix. Sparse matrices are never written in place
+     * by a consumer, so no snapshot is needed.
+     */
+    public void resolve(SparseMatrix matrix) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.children = null;
+        this.matrix = null;
+        this.sharedMatrix = null;
+        this.sparseMatrix = matrix;
+        this.tiledMatrix = null;
+    }
+
+    /**
+     * Resolves this node with a computed out-of-core matrix.
+     */
+    public void resolve(TiledMatrix matrix) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.children = null;
+        this.matrix = null;
+        this.sharedMatrix = null;
+        this.sparseMatrix = null;
+        this.tiledMatrix = matrix;
+    }
+
+    /**
+     * Resolves this node with the matrix another, already resolved, node holds. Both nodes reference
+     * the same matrix from now on, so both should be marked shared.
+     */
+    public void resolve(ComputationNode resolved) {
+        this.nodeType = ComputationNodeType.MATRIX;
+        this.children = null;
+        this.matrix = resolved.matrix;
+        this.sharedMatrix = resolved.sharedMatrix;
+        this.sparseMatrix = resolved.sparseMatrix;
+        this.tiledMatrix = resolved.tiledMatrix;
+    }
+
+    // true for a MATRIX node whose matrix is stored sparse
+    public boolean isSparse() {
+        return sparseMatrix != null;
+    }
+
+    public SparseMatrix getSparseMatrix() {
+        return sparseMatrix;
+    }
+
+    // true for a MATRIX node whose matrix is stored out of core
+    public boolean isTiled() {
+        return tiledMatrix != null;
+    }
+
+    public TiledMatrix getTiledMatrix() {
+        return tiledMatrix;
+    }
+
+    /**
+     * Returns this node's matrix in whatever storage it has, for reading it row by row.
+     */
+    public ReadableMatrix getReadableMatrix() {
+        if (tiledMatrix != null) {
+            // read from the file one row at a time, never loaded into the heap as a whole
+            return tiledMatrix;
+        }
+        if (sparseMatrix != null) {
+            // rows are read one at a time, which CSR storage does directly
+            return sparseMatrix.toOrientation(VectorOrientation.ROW_MAJOR);
+        }
+        return getSharedMatrix();
     }
 
     public double[][] getMatrix() {
+        if (matrix == null && (sharedMatrix != null || sparseMatrix != null)) {
+            // materializing the snapshot only when a 2D array is really asked for
+            matrix = getSharedMatrix().readRowMajor();
+        }
         if (matrix == null) {
             throw new IllegalStateException("This node does not contain a matrix.");
         }
         return matrix;
     }
 
-
-}
\ No newline at end of file
+    /**
+     * Returns this node's matrix as a SharedMatrix snapshot, loading it from the 2D array
+     * (or densifying the sparse matrix) the first time.
+     */
+    public SharedMatrix getSharedMatrix() {
+        if (tiledMatrix != null) {
+            throw new IllegalStateException("This node's matrix is stored out of core.");
+        }
+        if (sharedMatrix == null && sparseMatrix != null) {
+            SharedMatrix dense = sparseMatrix.toShared();
+            dense.publishSnapshot();
+            sharedMatrix = dense;
+        }
+        if (sharedMatrix == null) {
+            SharedMatrix loaded = new SharedMatrix(getMatrix());
+            loaded.publishSnapshot();
+            sharedMatrix = loaded;
+        }
+        return sharedMatrix;
+    }
+}
@@ -3,9 +3,11 @@ package parser;
 /**
  * Computation nodes hold either an operation to be applied, or a matrix (2D array).
  * Matrices are always leaf nodes, while operation nodes have children.
+ * SUBTRACT is never parsed from the input - it is produced by fusing A + (-B) before execution.
  */
 public enum ComputationNodeType {
     ADD,
+    SUBTRACT,
     MULTIPLY,
     NEGATE,
     TRANSPOSE,
@@ -1,68 +1,188 @@
 package parser;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.StreamReadFeature;
+
+import memory.SharedMatrix;
+import memory.SparseMatrix;
+import memory.TileStore;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.*;
 
+/**
+ * Parses the input JSON straight from Jackson's token stream: matrices are filled into primitive
+ * contiguous storage row by row as their numbers are read, so no JsonNode tree is ever built.
+ * A matrix operand may also be given as {"file": "path"}, referencing a binary matrix file
+ * (see BinaryMatrixFile) relative to the input file's directory.
+ * Matrices with at most sparseDensity non-zero elements are stored sparse (see SparseMatrix).
+ * Given a TileStore, every matrix is stored out of core instead (see TiledMatrix), and binary matrix
+ * files are streamed into it without ever being held in the heap.
+ */
 public class InputParser {
 
-    private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonFactory factory = JsonFactory.builder()
+            .enable(StreamReadFeature.USE_FAST_DOUBLE_PARSER)
+            .build();
+
+    // fraction of non-zero elements up to which a matrix is stored sparse (0 keeps every matrix dense)
+    private final double sparseDensity;
+    // where matrices are stored out of core, or null to keep them in the heap
+    private final TileStore tileStore;
+
+    public InputParser() {
+        this(SparseMatrix.DEFAULT_SPARSE_DENSITY);
+    }
+
+    public InputParser(double sparseDensity) {
+        this(sparseDensity, null);
+    }
+
+    public InputParser(double sparseDensity, TileStore tileStore) {
+        this.sparseDensity = sparseDensity;
+        this.tileStore = tileStore;
+    }
 
     public ComputationNode parse(String inputPath) throws ParseException {
-        try {
-            File inputFile = new File(inputPath);
-            JsonNode rootJsonNode = mapper.readTree(inputFile);
-            ComputationNode root = parseJsonNode(rootJsonNode);
+        File inputFile = new File(inputPath);
+        // binary operand files are looked up next to the input file
+        Path baseDir = inputFile.getAbsoluteFile().toPath().getParent();
+        try (JsonParser jsonParser = factory.createParser(inputFile)) {
+            if (jsonParser.nextToken() == null) {
+                throw new ParseException("Invalid node structure: empty input", 0);
+            }
+            ComputationNode root = parseNode(jsonParser, baseDir);
             return root;
         } catch (IOException e) {
             throw new ParseException("Failed to read the input JSON file: " + e.getMessage(), 0);
         }
     }
 
-    private ComputationNode parseJsonNode(JsonNode jsonNode) throws ParseException {
-        if (jsonNode.has("operator") && jsonNode.has("operands")) {
-            String operatorStr = jsonNode.get("operator").asText();
-            ArrayNode operandJsonNodes = (ArrayNode) jsonNode.get("operands");
-            List<ComputationNode> operands = new ArrayList<>();
-            for (int i = 0; i < operandJsonNodes.size(); i++) {
-                operands.add(parseJsonNode(operandJsonNodes.get(i)));
-            }
-            return new ComputationNode(operatorStr, operands);
+    // parses the value the parser currently points at, leaving the parser on its last token
+    private ComputationNode parseNode(JsonParser jsonParser, Path baseDir) throws IOException, ParseException {
+        JsonToken token = jsonParser.currentToken();
+        if (token == JsonToken.START_OBJECT) {
+            return parseObject(jsonParser, baseDir);
+        }
+        else if (token == JsonToken.START_ARRAY) {
+            return parseMatrix(jsonParser);
         }
-        else if (jsonNode.isArray()) {
-            if (jsonNode.size() == 0) {
-                throw new ParseException("Empty array cannot be parsed as DataNode.", 0);
+        else { throw new ParseException("Invalid node structure: " + jsonParser.getText(), offset(jsonParser)); }
+    }
+
+    // {"operator": ..., "operands": [...]} - the two fields may come in any order, other fields are skipped -
+    // or {"file": ...} for a matrix stored in a binary file
+    private ComputationNode parseObject(JsonParser jsonParser, Path baseDir) throws IOException, ParseException {
+        String operatorStr = null;
+        List<ComputationNode> operands = null;
+        String file = null;
+        while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jsonParser.currentName();
+            JsonToken value = jsonParser.nextToken();
+            if (field.equals("operator") && value.isScalarValue()) {
+                operatorStr = jsonParser.getText();
             }
-            // Check if it's a vector (1D array)
-            if (jsonNode.get(0).isNumber()) {
-                throw new ParseException("Vectors (1D arrays) are not supported as standalone nodes.", 0);
+            else if (field.equals("operands") && value == JsonToken.START_ARRAY) {
+                operands = new ArrayList<>();
+                while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
+                    operands.add(parseNode(jsonParser, baseDir));
+                }
+            }
+            else if (field.equals("file") && value == JsonToken.VALUE_STRING) {
+                file = jsonParser.getText();
             }
-            // Otherwise, it's a matrix (2D array)
             else {
-                double[][] matrix = new double[jsonNode.size()][];
-                int width = jsonNode.get(0).size();
-                for (int i = 0; i < jsonNode.size(); i++) {
-                    JsonNode rowJsonNode = jsonNode.get(i);
-                    if (rowJsonNode.size() != width) {
-                        throw new ParseException("Inconsistent row sizes in matrix.", 0);
-                    }
-                    if (!rowJsonNode.isArray()) {
-                        throw new ParseException("Invalid matrix row: " + rowJsonNode.toString(), 0);
-                    }
-                    matrix[i] = new double[rowJsonNode.size()];
-                    for (int j = 0; j < rowJsonNode.size(); j++) {
-                        matrix[i][j] = rowJsonNode.get(j).asDouble();
-                    }
+                jsonParser.skipChildren();
+            }
+        }
+        if (file != null && operatorStr == null && operands == null) {
+            Path path = baseDir == null ? Path.of(file) : baseDir.resolve(file);
+            try {
+                if (tileStore != null) {
+                    return new ComputationNode(BinaryMatrixFile.readTiled(path, tileStore));
+                }
+                return matrixNode(BinaryMatrixFile.read(path));
+            } catch (IOException e) {
+                throw new ParseException("Failed to read the binary matrix file " + path + ": " + e, offset(jsonParser));
+            }
+        }
+        if (operatorStr == null || operands == null) {
+            throw new ParseException("Invalid node structure: an operation must have an operator and operands", offset(jsonParser));
+        }
+        return new ComputationNode(operatorStr, operands);
+    }
+
+    // [[...], [...], ...] - every row is read straight into one growing contiguous array
+    private ComputationNode parseMatrix(JsonParser jsonParser) throws IOException, ParseException {
+        JsonToken token = jsonParser.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+            throw new ParseException("Empty array cannot be parsed as DataNode.", offset(jsonParser));
+        }
+        // Check if it's a vector (1D array)
+        if (token.isNumeric()) {
+            throw new ParseException("Vectors (1D arrays) are not supported as standalone nodes.", offset(jsonParser));
+        }
+        // Otherwise, it's a matrix (2D array)
+        double[] flat = new double[16];
+        int size = 0;
+        int width = -1; // known once the first row has been read
+        int rows = 0;
+        while (token != JsonToken.END_ARRAY) {
+            if (token != JsonToken.START_ARRAY) {
+                throw new ParseException("Invalid matrix row: " + jsonParser.getText(), offset(jsonParser));
+            }
+            int rowStart = size;
+            while ((token = jsonParser.nextToken()) != JsonToken.END_ARRAY) {
+                if (!token.isNumeric()) {
+                    throw new ParseException("Invalid matrix element: " + jsonParser.getText(), offset(jsonParser));
+                }
+                if (size == flat.length) {
+                    flat = Arrays.copyOf(flat, flat.length * 2);
                 }
-                return new ComputationNode(matrix);
+                flat[size++] = jsonParser.getDoubleValue();
             }
+            // validating every row against the first one as soon as the row ends
+            if (width == -1) {
+                width = size - rowStart;
+            } else if (size - rowStart != width) {
+                throw new ParseException("Inconsistent row sizes in matrix.", offset(jsonParser));
+            }
+            rows++;
+            token = jsonParser.nextToken();
+        }
+        if (flat.length != size) {
+            flat = Arrays.copyOf(flat, size);
+        }
+        SharedMatrix matrix = new SharedMatrix();
+        matrix.loadRowMajor(flat, rows, width);
+        return matrixNode(matrix);
+    }
+
+    // a leaf holding the parsed matrix, converted to sparse storage if it is mostly zeros
+    // (or moved out of core, when there is a tile store)
+    private ComputationNode matrixNode(SharedMatrix matrix) {
+        if (tileStore != null) {
+            return new ComputationNode(tileStore.copyOf(matrix));
+        }
+        if (sparseDensity > 0 && SparseMatrix.density(matrix) <= sparseDensity) {
+            return new ComputationNode(SparseMatrix.fromDense(matrix));
+        }
+        return new ComputationNode(matrix);
+    }
+
+    // position of the current token in the input, reported with parse errors
+    private static int offset(JsonParser jsonParser) {
+        // reading from a file, the parser counts bytes rather than chars
+        long offset = jsonParser.currentTokenLocation().getCharOffset();
+        if (offset < 0) {
+            offset = jsonParser.currentTokenLocation().getByteOffset();
         }
-        else { throw new ParseException("Invalid node structure: " + jsonNode.toString(), 0); }
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, offset));
     }
 
-}
\ No newline at end of file
+}
@@ -2,13 +2,37 @@ package parser;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 
+import memory.ReadableMatrix;
+
 public class OutputWriter {
 
     private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
 
+    // doubles are written with the shortest representation that reads back to the same value
+    private static final JsonFactory factory = JsonFactory.builder()
+            .enable(StreamWriteFeature.USE_FAST_DOUBLE_WRITER)
+            .build();
+
+    /**
+     * How the result file is laid out: PRETTY is indented for people to read,
+     * COMPACT has no whitespace at all, and BINARY is a BinaryMatrixFile.
+     * Errors are always written as JSON - compact for BINARY.
+     */
+    public enum Format {
+        PRETTY,
+        COMPACT,
+        BINARY
+    }
+
     public static class ResultMatrix {
         public double[][] result;
         public ResultMatrix(double[][] result) { this.result = result; }
@@ -26,9 +50,50 @@ public class OutputWriter {
         mapper.writerWithDefaultPrettyPrinter().writeValue(file, new ResultMatrix(matrix));
     }
 
+    /**
+     * Writes the result matrix as {"result": [[...], ...]}, streaming it one row at a time,
+     * so only a single row is ever held in memory besides the matrix itself.
+     * With Format.BINARY the matrix is written as a BinaryMatrixFile instead.
+     */
+    public static void write(ReadableMatrix matrix, String filePath, Format format) throws IOException {
+        if (format == Format.BINARY) {
+            BinaryMatrixFile.write(matrix, Path.of(filePath));
+            return;
+        }
+        try (JsonGenerator generator = createGenerator(filePath, format)) {
+            generator.writeStartObject();
+            generator.writeFieldName("result");
+            generator.writeStartArray();
+            double[] row = new double[matrix.cols()];
+            for (int i = 0; i < matrix.rows(); i++) {
+                matrix.readRow(i, row);
+                generator.writeArray(row, 0, row.length);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
     public static void write(String error, String filePath) throws IOException {
         File file = new File(filePath);
         mapper.writerWithDefaultPrettyPrinter().writeValue(file, new ErrorMessage(error));
     }
 
+    public static void write(String error, String filePath, Format format) throws IOException {
+        try (JsonGenerator generator = createGenerator(filePath, format)) {
+            generator.writeStartObject();
+            generator.writeStringField("error", error);
+            generator.writeEndObject();
+        }
+    }
+
+    private static JsonGenerator createGenerator(String filePath, Format format) throws IOException {
+        JsonGenerator generator = factory.createGenerator(new File(filePath), JsonEncoding.UTF8);
+        if (format == Format.PRETTY) {
+            // the same layout the ObjectMapper based writers produce
+            generator.useDefaultPrettyPrinter();
+        }
+        return generator;
+    }
+
 }
@@ -0,0 +1,13 @@
+package scheduling;
+
+/**
+ * How TiredExecutor chooses the worker a task is queued on. Stealing evens out whatever the choice gets wrong,
+ * so this decides how often stealing is needed.
+ */
+public enum SchedulingMode {
+    // the least fatigued idle worker, where fatigue is a random factor times the time the worker has worked
+    FATIGUE,
+    // the worker predicted to finish the task first, from its effective speed (its measured throughput against
+    // the pool's, per kind of work) and the work queued on it
+    CALIBRATED
+}
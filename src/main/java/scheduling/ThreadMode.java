@@ -0,0 +1,30 @@
+package scheduling;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * What kind of threads run the work around the computation: reading inputs, waiting for the engine, writing
+ * results and serving clients. The computation itself always runs on the TiredExecutor's workers, a fixed
+ * number of platform threads, whichever mode is used.
+ */
+public enum ThreadMode {
+    // one platform thread per job in flight, and per connected client
+    PLATFORM,
+    // one virtual thread per job and per client: a thread blocked on I/O or waiting for the workers costs
+    // a few hundred bytes instead of an OS thread, so the number of jobs in flight is only bounded by memory
+    VIRTUAL;
+
+    /**
+     * An executor for running at most maxThreads tasks at a time (callers bound the tasks they submit,
+     * virtual threads are not pooled).
+     */
+    public ExecutorService newBoundedExecutor(int maxThreads) {
+        return this == VIRTUAL ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(maxThreads);
+    }
+
+    // an executor starting a thread for every task it does not have an idle thread for
+    public ExecutorService newUnboundedExecutor() {
+        return this == VIRTUAL ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+    }
+}
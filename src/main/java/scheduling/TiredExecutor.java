@@ -1,19 +1,28 @@
 package scheduling;
 
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import monitoring.DispatchEvent;
 
 public class TiredExecutor {
 
     private final TiredThread[] workers;
-    private final PriorityBlockingQueue<TiredThread> idleMinHeap = new PriorityBlockingQueue<>();
-    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final SchedulingMode mode;
 
     public TiredExecutor(int numThreads) {
+        this(numThreads, SchedulingMode.FATIGUE);
+    }
+
+    public TiredExecutor(int numThreads, SchedulingMode mode) {
         // making sure we have workers!
         if (numThreads <= 0) {
             throw new IllegalArgumentException("error: must have at least one worker");
         }
+        this.mode = mode;
         // initializing new array for workers
         workers = new TiredThread[numThreads];
         // initializing threads and "waking" them up to get ready for tasks
@@ -21,48 +30,173 @@ public class TiredExecutor {
             // id is unique (because we have only one executor) and fatigueFactor is a
             // random num between 0.5 and 1.5
             workers[i] = new TiredThread(i, 0.5 + Math.random());
-            // waking up each worker. (if we have no task in the heap - he will fall asleep)
+        }
+        // every worker steals from the others when its own deque is empty, and is woken by any push when idle
+        WorkSignal signal = new WorkSignal();
+        for (int i = 0; i < numThreads; i++) {
+            workers[i].setPeers(workers, signal);
+        }
+        // waking up each worker. (if it has no task - it will wait for one)
+        for (int i = 0; i < numThreads; i++) {
             workers[i].start();
-            // adding worker to the idleHeap - since he does not have a task yet.
-            idleMinHeap.add(workers[i]);
         }
     }
 
     public void submit(Runnable task) {
-        try {
-            // getting the least fatigued worker
-            TiredThread currThread = idleMinHeap.take();
-            // updating num of inFlights with atomic method
-            inFlight.incrementAndGet();
-            // creating lambda function (one-time use class), to make sure workers return to the heap after running.
-            Runnable boomerangTask = () -> {
-                try {
-                    task.run();
-                } finally {
-                    inFlight.decrementAndGet();
-                    idleMinHeap.offer(currThread);
-                }
+        submit(task, 1);
+    }
+
+    // submit(Runnable, long, WorkKind), for a task of no particular kind
+    public void submit(Runnable task, long cost) {
+        submit(task, cost, WorkKind.GENERIC);
+    }
+
+    /**
+     * Submits a task of the given estimated cost, in the work units of its kind (the engine uses elements,
+     * floating point operations or non-zeros, depending on the operator). The cost only guides placement in
+     * CALIBRATED mode, where it is only ever compared with the measured throughput in the same kind of work.
+     */
+    public void submit(Runnable task, long cost, WorkKind kind) {
+        // picking a worker without blocking - the task is queued on its deque, and any idle worker may steal it
+        long estimate = 0;
+        TiredThread currThread;
+        if (mode == SchedulingMode.CALIBRATED) {
+            estimate = estimateNanos(cost, kind);
+            currThread = pickEarliestCompletion(estimate);
+        } else {
+            currThread = pickWorker();
+        }
+        // while a flight recording runs, the task reports how long it waited and which worker ran it
+        DispatchEvent dispatch = new DispatchEvent();
+        if (dispatch.isEnabled()) {
+            dispatch.start(currThread.getWorkerId(), currThread.getQueuedTasks());
+            Runnable queued = task;
+            task = () -> {
+                Thread runner = Thread.currentThread();
+                dispatch.report(runner instanceof TiredThread ? ((TiredThread) runner).getWorkerId() : -1);
+                queued.run();
             };
-            // assigning the worker the given task and making sure it is returning to heap
-            currThread.newTask(boomerangTask);
-            // If take() fails, we catch the error
-        } catch (InterruptedException e) {
-            // in case of a "forced" shut down, the program make sure to flag the mark,
-            // so in the next iteration .take() will notice the flag and fail
-            Thread.currentThread().interrupt();
         }
+        // assigning the worker the given task. completion is tracked per batch by submitAllAsync
+        currThread.newTask(task, cost, kind, estimate);
+    }
+
+    // placement hint: the least fatigued idle worker if there is one, otherwise the worker with the
+    // fewest queued tasks, with fatigue breaking ties. stealing evens out whatever this gets wrong
+    private TiredThread pickWorker() {
+        TiredThread best = null;
+        boolean bestIdle = false;
+        int bestQueued = 0;
+        for (TiredThread worker : workers) {
+            int queued = worker.getQueuedTasks();
+            boolean idle = !worker.isBusy() && queued == 0;
+            if (best == null
+                    || (idle && !bestIdle)
+                    || (idle == bestIdle && (queued < bestQueued || (queued == bestQueued && worker.compareTo(best) < 0)))) {
+                best = worker;
+                bestIdle = idle;
+                bestQueued = queued;
+            }
+        }
+        return best;
+    }
+
+    // nanoseconds a task of the given cost should take on a worker of the pool's average speed in its kind of
+    // work. until a task of the kind has been measured, a work unit is assumed to take a nanosecond
+    private long estimateNanos(long cost, WorkKind kind) {
+        double poolSpeed = TiredThread.averageSpeed(workers, kind);
+        return poolSpeed > 0 ? Math.round(cost / poolSpeed) : cost;
+    }
+
+    // placement by measured speed: the worker that would finish the task soonest, counting the rest of its
+    // current task and its queued work, at its effective speed. a worker that has not been measured yet is
+    // assumed to be as fast as the average
+    private TiredThread pickEarliestCompletion(long estimate) {
+        long now = System.nanoTime();
+        TiredThread best = null;
+        double bestCompletion = 0;
+        for (TiredThread worker : workers) {
+            double completion = worker.predictCompletion(estimate, now);
+            if (best == null || completion < bestCompletion) {
+                best = worker;
+                bestCompletion = completion;
+            }
+        }
+        return best;
     }
 
     public void submitAll(Iterable<Runnable> tasks) {
+        submitAll(tasks, 1, WorkKind.GENERIC);
+    }
+
+    // submitAll, for tasks of the given kind and estimated cost each (see submit(Runnable, long, WorkKind))
+    public void submitAll(Iterable<Runnable> tasks, long taskCost, WorkKind kind) {
+        // submitting the batch and parking until its own tasks are done - batches submitted by other threads
+        // at the same time are tracked separately and do not delay this one
+        try {
+            submitAllAsync(tasks, taskCost, kind).join();
+        } catch (CompletionException e) {
+            // rethrowing the failure of the first failed task as is
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Submits a batch of tasks and returns a future that completes once every task of the batch
+     * has finished, or completes exceptionally with the first failure of a task in the batch.
+     * Dependent work can be chained on the future instead of blocking a thread until the batch is done.
+     * The future is completed by the last task of the batch, so dependent work should be chained with an
+     * executor of its own (whenCompleteAsync etc.): chained otherwise, it runs on the worker as part of that
+     * task, and is counted in the task's time, its worker's speed and its flight recorder event.
+     */
+    public CompletableFuture<Void> submitAllAsync(Iterable<Runnable> tasks) {
+        return submitAllAsync(tasks, 1, WorkKind.GENERIC);
+    }
+
+    // submitAllAsync, for tasks of the given kind and estimated cost each (see submit(Runnable, long, WorkKind))
+    public CompletableFuture<Void> submitAllAsync(Iterable<Runnable> tasks, long taskCost, WorkKind kind) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        // per-batch countdown of unfinished tasks. it starts at 1 for the submitting loop itself, so the batch
+        // cannot complete while tasks are still being submitted
+        AtomicInteger remaining = new AtomicInteger(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
         // iterating through all tasks and submitting them
         for (Runnable t : tasks) {
-            submit(t);
+            remaining.incrementAndGet();
+            submit(() -> {
+                try {
+                    t.run();
+                } catch (Throwable e) {
+                    // keeping the first failure of the batch to complete its future with. errors count too
+                    // (e.g. running out of memory for a buffer): the batch must not complete with a partial result
+                    failure.compareAndSet(null, e);
+                    // the worker's flight recorder event still shows the task as failed
+                    if (Thread.currentThread() instanceof TiredThread worker) {
+                        worker.reportFailure();
+                    }
+                } finally {
+                    countDown(remaining, failure, done);
+                }
+            }, taskCost, kind);
         }
-        // checking if there are still any open tasks
-        while (inFlight.get() > 0) {
-            // If there are, don't check activly - release the CPU for other threads to save
-            // time and effiency.
-            Thread.yield();
+        countDown(remaining, failure, done);
+        return done;
+    }
+
+    // the last task of a batch to finish completes the batch's future
+    private static void countDown(AtomicInteger remaining, AtomicReference<Throwable> failure, CompletableFuture<Void> done) {
+        if (remaining.decrementAndGet() == 0) {
+            if (failure.get() != null) {
+                done.completeExceptionally(failure.get());
+            } else {
+                done.complete(null);
+            }
         }
     }
 
@@ -77,9 +211,18 @@ public class TiredExecutor {
         }
     }
 
+    // the workers of this executor, for reports that need their numbers rather than text
+    public List<TiredThread> getWorkers() {
+        return List.of(workers);
+    }
+
+    public SchedulingMode getMode() {
+        return mode;
+    }
+
     public synchronized String getWorkerReport() {
         // Starting with new string for the report
-        String report = "Worker report:\n";
+        String report = "Worker report (" + mode.name().toLowerCase() + " scheduling):\n";
         for (int i = 0; i < workers.length; i++) {
             // for each worker, we print the id, workTime, idletime and fatigue status
             report += "---------------------------\n";
@@ -90,6 +233,10 @@ public class TiredExecutor {
             report += "Total work time:" + workTime + " ms\n";
             report += "Total idle time:" + idleTime + " ms\n";
             report += "Fatigue status:" + String.format("%.2f", workers[i].getFatigue()) + "\n";
+            // the effective speed, against the average of the pool on the same kinds of work
+            double speed = workers[i].getRelativeSpeed();
+            report += "Effective speed:" + (speed > 0 ? String.format("%.2f", speed) + "x pool average" : "not measured") + "\n";
+            report += "Queued work:" + workers[i].getQueuedCost() + " units\n";
             report += "---------------------------\n";
         }
         return report;
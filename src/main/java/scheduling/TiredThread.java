@@ -1,22 +1,78 @@
 package scheduling;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
+import monitoring.TaskEvent;
+
 public class TiredThread extends Thread implements Comparable<TiredThread> {
 
-    private static final Runnable POISON_PILL = () -> {
-    }; // Special task to signal shutdown
+    private static final QueuedTask POISON_PILL = new QueuedTask(() -> {
+    }, 0, WorkKind.GENERIC, 0); // Special task to wake a waiting worker on shutdown
+
+    // The measured speed of a worker forgets what it did this long ago by half, so it follows changes in
+    // the machine's load (other processes, frequency scaling) instead of averaging over the whole run
+    private static final long SPEED_HALF_LIFE_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // A task in a worker's deque, with its estimated cost in work units of its kind (see TiredExecutor.submit),
+    // and the nanoseconds it is estimated to take on a worker of the pool's average speed
+    private static final class QueuedTask {
+        final Runnable task;
+        final long cost;
+        final WorkKind kind;
+        final long estimate;
+
+        QueuedTask(Runnable task, long cost, WorkKind kind, long estimate) {
+            this.task = task;
+            this.cost = cost;
+            this.kind = kind;
+            this.estimate = estimate;
+        }
+    }
+
+    // An amount per nanosecond, over amounts and times that are both decayed by SPEED_HALF_LIFE_NANOS.
+    // Only the worker itself adds to it; a rate of 0 means nothing has been measured yet
+    private static final class DecayedRate {
+        private double decayedAmount = 0;
+        private double decayedNanos = 0;
+        private long lastSampleTime = 0;
+        private volatile double rate = 0;
+
+        void add(double amount, long nanos, long end) {
+            if (lastSampleTime != 0) {
+                double decay = Math.pow(0.5, (double) (end - lastSampleTime) / SPEED_HALF_LIFE_NANOS);
+                decayedAmount *= decay;
+                decayedNanos *= decay;
+            }
+            lastSampleTime = end;
+            decayedAmount += amount;
+            decayedNanos += nanos;
+            rate = decayedAmount / decayedNanos;
+        }
+
+        double get() {
+            return rate;
+        }
+    }
 
     private final int id; // Worker index assigned by the executor
     private final double fatigueFactor; // Multiplier for fatigue calculation
 
     private final AtomicBoolean alive = new AtomicBoolean(true); // Indicates if the worker should keep running
 
-    // Single-slot handoff queue; executor will put tasks here
-    private final BlockingQueue<Runnable> handoff = new ArrayBlockingQueue<>(1);
+    // This worker's own deque of tasks; the executor pushes tasks to its tail, the worker takes them
+    // from the head, and other workers steal from the tail when their own deque is empty
+    private final BlockingDeque<QueuedTask> tasks = new LinkedBlockingDeque<>();
+    // Total cost of the tasks in the deque, and their total estimated time at the pool's average speed
+    private final AtomicLong queuedCost = new AtomicLong(0);
+    private final AtomicLong queuedEstimate = new AtomicLong(0);
+
+    // All workers of the executor (including this one), to steal from, and what wakes them when idle
+    private TiredThread[] peers = {this};
+    private WorkSignal signal = new WorkSignal();
 
     private final AtomicBoolean busy = new AtomicBoolean(false); // Indicates if the worker is currently executing a
                                                                  // task
@@ -25,11 +81,25 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
     private final AtomicLong timeIdle = new AtomicLong(0); // Total time spent idle
     private final AtomicLong idleStartTime = new AtomicLong(0); // Timestamp when the worker became idle
 
+    // The task being run: its estimated time and when it started, to predict how much of it is left
+    private volatile long currentEstimate = 0;
+    private volatile long currentStart = 0;
+    // Set when the task being run failed but handled its failure itself (see reportFailure)
+    private boolean currentFailed = false;
+    // Work units done per nanosecond, for every kind of work (by WorkKind ordinal)
+    private final DecayedRate[] speeds = new DecayedRate[WorkKind.values().length];
+    // How fast this worker runs its tasks compared to the whole pool running tasks of the same kinds:
+    // the time its tasks would take at the pool's average speed per nanosecond they actually took
+    private final DecayedRate relativeSpeed = new DecayedRate();
+
     public TiredThread(int id, double fatigueFactor) {
         this.id = id;
         this.fatigueFactor = fatigueFactor;
         this.idleStartTime.set(System.nanoTime());
         setName(String.format("FF=%.2f", fatigueFactor));
+        for (int k = 0; k < speeds.length; k++) {
+            speeds[k] = new DecayedRate();
+        }
     }
 
     public int getWorkerId() {
@@ -52,27 +122,152 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
         return timeIdle.get();
     }
 
+    // number of tasks waiting in this worker's deque
+    public int getQueuedTasks() {
+        return tasks.size();
+    }
+
+    // total estimated cost of the tasks waiting in this worker's deque
+    public long getQueuedCost() {
+        return queuedCost.get();
+    }
+
+    /**
+     * Measured throughput of this worker in the given kind of work, in work units per nanosecond, weighted
+     * towards its recent tasks. 0 until the worker has run a task of that kind.
+     */
+    public double getSpeed(WorkKind kind) {
+        return speeds[kind.ordinal()].get();
+    }
+
+    /**
+     * The effective speed of this worker: how fast it runs its tasks compared to the average of the pool on
+     * tasks of the same kinds (1 is as fast as the average, 2 twice as fast), weighted towards its recent
+     * tasks. 0 until the worker has run a task of a kind the pool has measured.
+     */
+    public double getRelativeSpeed() {
+        return relativeSpeed.get();
+    }
+
+    /**
+     * The average throughput of the given workers in the given kind of work, over those that have run a
+     * task of that kind, or 0 when none has.
+     */
+    static double averageSpeed(TiredThread[] workers, WorkKind kind) {
+        double speedSum = 0;
+        int measured = 0;
+        for (TiredThread worker : workers) {
+            double speed = worker.getSpeed(kind);
+            if (speed > 0) {
+                speedSum += speed;
+                measured++;
+            }
+        }
+        return measured == 0 ? 0 : speedSum / measured;
+    }
+
+    /**
+     * Predicts in how many nanoseconds this worker would finish a task estimated to take estimate nanoseconds
+     * at the pool's average speed, if it were queued now: the rest of its current task, the tasks already in
+     * its deque and then the new one, at its effective speed (the average, while it has not been measured).
+     */
+    public double predictCompletion(long estimate, long now) {
+        double workerSpeed = relativeSpeed.get() > 0 ? relativeSpeed.get() : 1;
+        double pending = queuedEstimate.get() + estimate;
+        if (busy.get()) {
+            pending += Math.max(0, currentEstimate - (now - currentStart) * workerSpeed);
+        }
+        return pending / workerSpeed;
+    }
+
+    // the workers this worker may steal from, and the signal they all wait on when idle, set once by the
+    // executor before any task is submitted
+    void setPeers(TiredThread[] peers, WorkSignal signal) {
+        this.peers = peers;
+        this.signal = signal;
+    }
+
     /**
      * Assign a task to this worker.
-     * This method is non-blocking: if the worker is not ready to accept a task,
-     * it throws IllegalStateException.
+     * This method is non-blocking: the task is queued at the tail of the worker's deque,
+     * from where it is run by this worker or stolen by an idle one.
      */
     public void newTask(Runnable task) {
-        this.handoff.add(task); // try to add the task to handoff queue. the IllegalStateException is thrown
-                                // from add method and will be cought by Executor
+        newTask(task, 1);
+    }
+
+    /**
+     * Assign a task of the given estimated cost (in work units) to this worker, like newTask(Runnable).
+     */
+    public void newTask(Runnable task, long cost) {
+        newTask(task, cost, WorkKind.GENERIC, cost);
+    }
+
+    /**
+     * Assign a task of the given kind and estimated cost to this worker, like newTask(Runnable).
+     * estimate is the nanoseconds it should take at the pool's average speed (see predictCompletion).
+     */
+    public void newTask(Runnable task, long cost, WorkKind kind, long estimate) {
+        this.queuedCost.addAndGet(cost);
+        this.queuedEstimate.addAndGet(estimate);
+        this.tasks.offerLast(new QueuedTask(task, cost, kind, estimate));
+        // an idle worker may steal it right away
+        signal.signalPush();
     }
 
     /**
-     * Request this worker to stop after finishing current task.
-     * Inserts a poison pill so the worker wakes up and exits.
+     * Request this worker to stop once there are no tasks left for it.
+     * Inserts a poison pill so a waiting worker wakes up and exits.
      */
     public void shutdown() {
         // Shutting down the thread
         this.alive.set(false);
-        // Using put to make sure that the thread takes the poison pill as the next task.
-        try {
-            this.handoff.put(POISON_PILL);
-        } catch (InterruptedException error) {
+        this.tasks.offerLast(POISON_PILL);
+        // whoever takes the pill, this worker has to notice there is nothing left for it
+        signal.signalAll();
+    }
+
+    // marks the task this worker is running as failed, for a task that catches its own failure instead of
+    // throwing it (the batches of TiredExecutor.submitAllAsync). only called by the worker itself
+    void reportFailure() {
+        currentFailed = true;
+    }
+
+    // taking a task from the tail of another worker's deque - the opposite end from the one its owner uses,
+    // so the two rarely compete over the same task
+    private QueuedTask steal() {
+        int n = peers.length;
+        for (int i = 1; i < n; i++) {
+            TiredThread victim = peers[(id + i) % n];
+            QueuedTask task = victim.tasks.pollLast();
+            if (task != null) {
+                victim.queuedCost.addAndGet(-task.cost);
+                victim.queuedEstimate.addAndGet(-task.estimate);
+                return task;
+            }
+        }
+        return null;
+    }
+
+    // taking the next task from the head of the own deque
+    private QueuedTask takeOwn() {
+        QueuedTask task = tasks.pollFirst();
+        if (task != null) {
+            queuedCost.addAndGet(-task.cost);
+            queuedEstimate.addAndGet(-task.estimate);
+        }
+        return task;
+    }
+
+    // folding a finished task into the decayed throughput of this worker in the task's kind of work, and into
+    // its effective speed: the time the task would have taken at the pool's average speed for that kind,
+    // against the time it took
+    private void recordSpeed(QueuedTask task, long start, long end) {
+        long nanos = Math.max(1, end - start);
+        speeds[task.kind.ordinal()].add(task.cost, nanos, end);
+        double poolSpeed = averageSpeed(peers, task.kind);
+        if (poolSpeed > 0) {
+            relativeSpeed.add(task.cost / poolSpeed, nanos, end);
         }
     }
 
@@ -80,29 +275,54 @@ public class TiredThread extends Thread implements Comparable<TiredThread> {
     public void run() {
         try {
             // Making sure the thread keeps taking tasks when is possible
-            while (alive.get()) {
-                // taking the task that is waiting in queue
-                Runnable task = handoff.take();
-                // eliminating the worker - no more tasks
+            while (true) {
+                // taking the next task from the head of the own deque, or stealing one if it is empty
+                QueuedTask task = takeOwn();
+                if (task == null) {
+                    task = steal();
+                }
+                if (task == null) {
+                    // eliminating the worker - no more tasks
+                    if (!alive.get()) {
+                        break;
+                    }
+                    // nothing to do: waiting until a task is pushed to any worker's deque (including a poison
+                    // pill), and looking for one again
+                    signal.awaitPush(peers);
+                    continue;
+                }
+                // the poison pill only wakes the worker, so it notices it should exit
                 if (task == POISON_PILL) {
-                    alive.set(false);
-                    break;
+                    continue;
                 }
                 // setting the exact idle time
                 long currTime = System.nanoTime();
                 // updating total idle time
                 this.timeIdle.addAndGet(currTime - idleStartTime.get());
+                currentEstimate = task.estimate;
+                currentStart = currTime;
                 this.busy.set(true);
+                // timing the task for a flight recording (a no-op when none is running)
+                TaskEvent event = new TaskEvent();
+                if (event.isEnabled()) {
+                    event.start(id, getFatigue());
+                }
+                boolean failed = false;
+                currentFailed = false;
                 // After updatding the relevat fields, worker starting to work
-                // *using another try catch to make sure worker does not "die" if task fails.
+                // *using another try catch to make sure worker does not "die" if task fails - errors
+                // included, so the executor never loses a worker (a batch reports them to its submitter)
                 try{
-                    task.run();
-                } catch (RuntimeException e){
+                    task.task.run();
+                } catch (Throwable e){
+                    failed = true;
                     System.err.println(e.getMessage());
                 }
+                event.report(failed || currentFailed);
                 // updating exact "busy time"
                 long timeNow = System.nanoTime();
                 timeUsed.addAndGet(timeNow - currTime);
+                recordSpeed(task, currTime, timeNow);
                 // Worker stopped working
                 this.busy.set(false);
                 // Worker enteres "Idle" time again.
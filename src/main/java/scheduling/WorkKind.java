@@ -0,0 +1,20 @@
+package scheduling;
+
+/**
+ * What a task's cost counts, so costs are only compared with costs of the same kind: the work units of the
+ * engine's operators mean different things (an element of a memory-bound sum, a floating point operation of
+ * a compute-bound product, a visited non-zero), and a worker's throughput in one says nothing about the other.
+ * CALIBRATED scheduling measures every worker against the whole pool for each kind separately.
+ */
+public enum WorkKind {
+    // tasks submitted without a kind, costing one unit each by default
+    GENERIC,
+    // dense add, subtract and negate: one unit per element
+    ELEMENTWISE,
+    // dense products: one unit per floating point operation
+    MULTIPLY,
+    // operators with a sparse operand: one unit per visited non-zero (or element of a dense operand)
+    SPARSE,
+    // operators on out-of-core matrices, bound by the page cache and the disk
+    OUT_OF_CORE
+}
@@ -0,0 +1,71 @@
+package scheduling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wakes the idle workers of an executor when a task is pushed to the deque of any of them. An idle worker
+ * waits here rather than on its own deque, so work it could steal is picked up as soon as it is pushed.
+ */
+final class WorkSignal {
+
+    // an idle worker looks for work again after this long even without a signal. nothing should depend on it
+    private static final long MAX_IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pushed = lock.newCondition();
+    // workers waiting for a signal, so a push only takes the lock when someone is waiting
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    /**
+     * Wakes one idle worker, if any, after a task was pushed to a deque.
+     */
+    void signalPush() {
+        // the push happened before this read, and a worker counts itself in before it checks the deques, so
+        // either the worker sees the task or this sees the worker
+        if (waiting.get() == 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            pushed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // wakes every idle worker, e.g. so they all notice they should shut down
+    void signalAll() {
+        lock.lock();
+        try {
+            pushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Parks an idle worker until a task is pushed to the deque of any of the given workers, unless one of
+     * them already holds a task.
+     */
+    void awaitPush(TiredThread[] workers) throws InterruptedException {
+        lock.lock();
+        try {
+            waiting.incrementAndGet();
+            try {
+                for (TiredThread worker : workers) {
+                    if (worker.getQueuedTasks() > 0) {
+                        return;
+                    }
+                }
+                pushed.awaitNanos(MAX_IDLE_WAIT_NANOS);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
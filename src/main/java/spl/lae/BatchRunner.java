@@ -0,0 +1,362 @@
+package spl.lae;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import memory.ReadableMatrix;
+import memory.TileStore;
+import monitoring.Metrics;
+import monitoring.RunMetrics;
+import parser.ComputationNode;
+import parser.InputParser;
+import parser.OutputWriter;
+import scheduling.ThreadMode;
+
+/**
+ * Runs a stream of (input, output) jobs on one warm engine, so the JVM start, the worker threads,
+ * the JIT-compiled kernels and the engine's result cache are paid for once instead of once per job.
+ * Every job parses its input, runs it and writes its output (or its error) exactly like a single run of Main.
+ * At most maxJobs jobs are in flight at a time: submitting more blocks until one of them finishes.
+ * Jobs come from a manifest file, a spool directory or a Unix-domain socket; in all three a job is a line
+ * holding the input path and the output path, separated by whitespace.
+ */
+public class BatchRunner implements AutoCloseable {
+
+    // a spool directory holding a file of this name stops the daemon once the jobs in flight are done
+    public static final String SPOOL_STOP_FILE = "stop";
+    // a socket client sending this line stops the daemon once the jobs in flight are done
+    public static final String SOCKET_STOP_LINE = "shutdown";
+    // once the daemon stops, connections still waiting for replies get this long to receive them
+    private static final long CONNECTION_DRAIN_SECONDS = 30;
+
+    private final LinearAlgebraEngine engine;
+    private final double sparseDensity;
+    private final OutputWriter.Format format;
+    private final ThreadMode threadMode;
+    private final ExecutorService jobThreads;
+    private final Semaphore slots;
+
+    public BatchRunner(LinearAlgebraEngine engine, int maxJobs, double sparseDensity, OutputWriter.Format format) {
+        this(engine, maxJobs, sparseDensity, format, ThreadMode.PLATFORM);
+    }
+
+    /**
+     * Creates a runner whose jobs and client connections run on threads of the given mode. The engine's
+     * workers compute every job either way, so with virtual threads many more jobs can be in flight (parsing,
+     * waiting for the workers or writing) than there are platform threads.
+     */
+    public BatchRunner(LinearAlgebraEngine engine, int maxJobs, double sparseDensity, OutputWriter.Format format,
+                       ThreadMode threadMode) {
+        this.engine = engine;
+        this.sparseDensity = sparseDensity;
+        this.format = format;
+        this.threadMode = threadMode;
+        this.jobThreads = threadMode.newBoundedExecutor(maxJobs);
+        this.slots = new Semaphore(maxJobs);
+    }
+
+    /**
+     * Runs one job on the calling thread. A failure is written to the output file instead of the result,
+     * and returned as the error message (null when the job succeeded).
+     */
+    public static String runJob(LinearAlgebraEngine engine, double sparseDensity, OutputWriter.Format format,
+                                String inputPath, String outputPath) throws IOException {
+        // with -Dlae.metrics=true, what the job cost is written next to its result, as <output>.metrics.json
+        RunMetrics metrics = Metrics.ENABLED ? new RunMetrics() : null;
+        // when the engine runs jobs out of core, the job's matrices are files of its own tile store,
+        // all deleted once the result is written
+        try (TileStore tileStore = engine.openTileStore()) {
+            long start = System.nanoTime();
+            ComputationNode root = new InputParser(sparseDensity, tileStore).parse(inputPath);
+            if (metrics != null) {
+                metrics.recordPhase("parse", System.nanoTime() - start);
+            }
+            ComputationNode res = engine.run(root, metrics);
+            start = System.nanoTime();
+            // an out-of-core result that is a transposed view is stored transposed first, so it is written
+            // row by row from contiguous runs of its file instead of an element of every stored row at a time
+            ReadableMatrix result = res.isTiled() ? res.getTiledMatrix().materialize() : res.getReadableMatrix();
+            if (metrics != null) {
+                metrics.recordPhase("readback", System.nanoTime() - start);
+            }
+            // writing the result in output, streaming it row by row straight from the result matrix
+            start = System.nanoTime();
+            OutputWriter.write(result, outputPath, format);
+            if (metrics != null) {
+                metrics.recordPhase("write", System.nanoTime() - start);
+            }
+            return null;
+        } catch (Throwable e) {
+            // logging errors on output. errors too (e.g. running out of memory for a large result): they only
+            // fail this job, and must not take down the rest of a batch or a client's connection
+            String message = e.getMessage() == null ? e.toString() : e.getMessage();
+            OutputWriter.write(message, outputPath, format);
+            if (metrics != null) {
+                metrics.setError(message);
+            }
+            return message;
+        } finally {
+            if (metrics != null) {
+                metrics.writeJson(outputPath + ".metrics.json");
+            }
+        }
+    }
+
+    /**
+     * Queues a job, waiting for a free slot first. The future completes with the job's error message,
+     * or with null when it succeeded.
+     */
+    public CompletableFuture<String> submit(String inputPath, String outputPath) throws InterruptedException {
+        slots.acquire();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return runJob(engine, sparseDensity, format, inputPath, outputPath);
+                } catch (IOException e) {
+                    return "failed to write " + outputPath + ": " + e.getMessage();
+                } catch (Throwable e) {
+                    // thrown while reporting the job's failure: the job still only counts as failed
+                    return "failed to report the error of " + outputPath + ": " + e;
+                } finally {
+                    slots.release();
+                }
+            }, jobThreads);
+        } catch (RuntimeException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs every job listed in a manifest file, one "input output" pair per line. Blank lines and lines
+     * starting with # are skipped, and relative paths are relative to the manifest's directory.
+     * Returns the number of jobs that failed.
+     */
+    public int runManifest(Path manifest) throws IOException, InterruptedException {
+        Path baseDir = manifest.toAbsolutePath().getParent();
+        List<CompletableFuture<String>> jobs = submitLines(Files.readAllLines(manifest, StandardCharsets.UTF_8), baseDir);
+        return countFailures(jobs);
+    }
+
+    /**
+     * Serves a spool directory until a file named "stop" appears in it: every *.job file dropped into the
+     * directory holds manifest lines (see runManifest). A job file is renamed to *.job.running while its jobs
+     * run, and to *.job.done once they are all finished, so it is picked up once even by several daemons.
+     * Job files should be written under another name and renamed to *.job when complete.
+     */
+    public void runSpool(Path spool) throws IOException, InterruptedException {
+        try (WatchService watcher = spool.getFileSystem().newWatchService()) {
+            spool.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            List<CompletableFuture<Void>> inFlight = new ArrayList<>();
+            while (!Files.exists(spool.resolve(SPOOL_STOP_FILE))) {
+                for (Path jobFile : listJobFiles(spool)) {
+                    Path running = jobFile.resolveSibling(jobFile.getFileName() + ".running");
+                    try {
+                        Files.move(jobFile, running, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) {
+                        continue; // taken by another daemon
+                    }
+                    List<CompletableFuture<String>> jobs = submitLines(Files.readAllLines(running, StandardCharsets.UTF_8), spool);
+                    inFlight.add(CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+                        try {
+                            Files.move(running, jobFile.resolveSibling(jobFile.getFileName() + ".done"), StandardCopyOption.REPLACE_EXISTING);
+                        } catch (IOException e) {
+                            System.err.println("could not mark " + running + " done: " + e.getMessage());
+                        }
+                    }));
+                }
+                inFlight.removeIf(CompletableFuture::isDone);
+                // waking up on any change in the directory, and every second anyway in case an event was missed
+                var key = watcher.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+            CompletableFuture.allOf(inFlight.toArray(new CompletableFuture<?>[0])).join();
+        }
+    }
+
+    /**
+     * Serves a Unix-domain socket at socketPath until a client sends "shutdown". Every connection sends
+     * "input output" lines and gets one reply line per job, in the order the jobs were sent:
+     * "ok output" or "error output: message". Relative paths are relative to the daemon's working directory.
+     * On shutdown no more jobs are read from any connection: connections get the replies to the jobs they
+     * already sent for a while (CONNECTION_DRAIN_SECONDS), and are closed after that.
+     */
+    public void runSocket(Path socketPath) throws IOException, InterruptedException {
+        Files.deleteIfExists(socketPath);
+        ExecutorService connections = threadMode.newUnboundedExecutor();
+        Set<SocketChannel> clients = ConcurrentHashMap.newKeySet();
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketPath));
+            while (true) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (IOException e) {
+                    break; // the server was closed by a shutdown request
+                }
+                clients.add(client);
+                connections.execute(() -> serveConnection(client, server, clients));
+            }
+        } finally {
+            connections.shutdown();
+            // an idle client would otherwise keep its connection (and the daemon) open forever: ending the
+            // input of every connection lets it finish as soon as its replies are sent
+            for (SocketChannel client : clients) {
+                try {
+                    client.shutdownInput();
+                } catch (IOException e) {
+                    // already closed
+                }
+            }
+            if (!connections.awaitTermination(CONNECTION_DRAIN_SECONDS, TimeUnit.SECONDS)) {
+                System.err.println("closing " + clients.size() + " connections still waiting for replies");
+                for (SocketChannel client : clients) {
+                    client.close();
+                }
+                connections.shutdownNow();
+            }
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    // reads the job lines of a single connection, replying to each job when it and all jobs before it are done
+    private void serveConnection(SocketChannel client, ServerSocketChannel server, Set<SocketChannel> clients) {
+        try (client;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(Channels.newOutputStream(client), StandardCharsets.UTF_8)) {
+            CompletableFuture<Void> replies = CompletableFuture.completedFuture(null);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().equals(SOCKET_STOP_LINE)) {
+                    replies.join();
+                    server.close();
+                    return;
+                }
+                String[] job = parseJobLine(line);
+                if (job == null) {
+                    continue;
+                }
+                CompletableFuture<String> result = job.length == 2
+                        ? submit(job[0], job[1])
+                        : CompletableFuture.completedFuture("invalid job line: " + line);
+                String output = job[job.length - 1];
+                replies = replies.thenCombine(result, (ignored, error) -> {
+                    reply(writer, error == null ? "ok " + output : "error " + output + ": " + error);
+                    return null;
+                });
+            }
+            replies.join();
+        } catch (IOException | InterruptedException e) {
+            System.err.println("connection failed: " + e.getMessage());
+        } finally {
+            clients.remove(client);
+        }
+    }
+
+    private static void reply(Writer writer, String line) {
+        try {
+            writer.write(line + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("could not reply to client: " + e.getMessage());
+        }
+    }
+
+    // submits every job line, resolving relative paths against baseDir. malformed lines count as failed jobs
+    private List<CompletableFuture<String>> submitLines(List<String> lines, Path baseDir) throws InterruptedException {
+        List<CompletableFuture<String>> jobs = new ArrayList<>();
+        for (String line : lines) {
+            String[] job = parseJobLine(line);
+            if (job == null) {
+                continue;
+            }
+            if (job.length != 2) {
+                System.err.println("invalid job line: " + line);
+                jobs.add(CompletableFuture.completedFuture("invalid job line: " + line));
+                continue;
+            }
+            jobs.add(submit(baseDir.resolve(job[0]).toString(), baseDir.resolve(job[1]).toString()));
+        }
+        return jobs;
+    }
+
+    // splits a job line into its fields, or returns null for a blank or comment line
+    private static String[] parseJobLine(String line) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return null;
+        }
+        return trimmed.split("\\s+");
+    }
+
+    private static int countFailures(List<CompletableFuture<String>> jobs) {
+        int failures = 0;
+        for (CompletableFuture<String> job : jobs) {
+            String error = job.join();
+            if (error != null) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    // the *.job files of the spool directory, by name
+    private static List<Path> listJobFiles(Path spool) throws IOException {
+        List<Path> res = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(spool, "*.job")) {
+            for (Path file : files) {
+                res.add(file);
+            }
+        }
+        res.sort(null);
+        return res;
+    }
+
+    /**
+     * Waits for the jobs in flight and shuts the job threads and the engine down. When the calling thread is
+     * interrupted, the jobs in flight are abandoned instead, and the thread is left interrupted.
+     */
+    @Override
+    public void close() {
+        jobThreads.shutdown();
+        try {
+            jobThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            engine.shutdown();
+        } catch (InterruptedException e) {
+            jobThreads.shutdownNow();
+            // the workers are still told to stop, without waiting for them
+            Thread.currentThread().interrupt();
+            try {
+                engine.shutdown();
+            } catch (InterruptedException stillInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * Algebraic rewrite pass run over a (binary) computation tree before it is executed.
+ * Every rewrite removes a node that would otherwise be computed and materialized on its own:
+ * - T(T(X)) becomes X, and -(-X) becomes X.
+ * - A + (-B) and (-B) + A become the fused A - B, and (-A) + (-B) becomes -(A + B).
+ * - T(X) as an operand of a multiplication is folded into the multiply kernel, which reads X
+ *   transposed through its strides (see ComputationNode.isTransposed).
+ * - T(A * B) becomes T(B) * T(A), whose transposes are then folded the same way, so the
+ *   transpose of the product is never materialized.
+ */
+public class ExpressionOptimizer {
+
+    private ExpressionOptimizer() {
+    }
+
+    /**
+     * Rewrites the tree rooted at root bottom-up and returns the root of the rewritten tree,
+     * which may be a different node than root.
+     */
+    public static ComputationNode optimize(ComputationNode root) {
+        if (root.getNodeType() == ComputationNodeType.MATRIX) {
+            return root;
+        }
+        // optimizing the children first, so the patterns below see already simplified operands
+        List<ComputationNode> children = new ArrayList<>(root.getChildren().size());
+        for (ComputationNode child : root.getChildren()) {
+            children.add(optimize(child));
+        }
+        ComputationNode node = new ComputationNode(root.getNodeType(), children);
+        switch (node.getNodeType()) {
+            case TRANSPOSE:
+                return optimizeTranspose(node, children.get(0));
+            case NEGATE:
+                // -(-X) = X
+                if (children.get(0).getNodeType() == ComputationNodeType.NEGATE) {
+                    return children.get(0).getChildren().get(0);
+                }
+                return node;
+            case ADD:
+                return children.size() == 2 ? optimizeAdd(node, children.get(0), children.get(1)) : node;
+            case MULTIPLY:
+                // folding transposed operands into the kernel's operand access
+                for (int i = 0; i < children.size(); i++) {
+                    ComputationNode child = children.get(i);
+                    if (child.getNodeType() == ComputationNodeType.TRANSPOSE) {
+                        children.set(i, foldTranspose(child.getChildren().get(0)));
+                    }
+                }
+                return node;
+            default:
+                return node;
+        }
+    }
+
+    private static ComputationNode optimizeTranspose(ComputationNode node, ComputationNode child) {
+        // T(T(X)) = X
+        if (child.getNodeType() == ComputationNodeType.TRANSPOSE) {
+            return child.getChildren().get(0);
+        }
+        // T(A * B) = T(B) * T(A). both transposes are folded into the multiplication, so this trades
+        // a materialized transpose of the product for no extra work at all
+        if (child.getNodeType() == ComputationNodeType.MULTIPLY && child.getChildren().size() == 2) {
+            ComputationNode a = child.getChildren().get(0);
+            ComputationNode b = child.getChildren().get(1);
+            List<ComputationNode> swapped = new ArrayList<>(2);
+            swapped.add(foldTranspose(b));
+            swapped.add(foldTranspose(a));
+            return new ComputationNode(ComputationNodeType.MULTIPLY, swapped);
+        }
+        return node;
+    }
+
+    private static ComputationNode optimizeAdd(ComputationNode node, ComputationNode left, ComputationNode right) {
+        boolean leftNegated = left.getNodeType() == ComputationNodeType.NEGATE;
+        boolean rightNegated = right.getNodeType() == ComputationNodeType.NEGATE;
+        if (leftNegated && rightNegated) {
+            // (-A) + (-B) = -(A + B): one negation instead of two
+            List<ComputationNode> sum = new ArrayList<>(2);
+            sum.add(left.getChildren().get(0));
+            sum.add(right.getChildren().get(0));
+            List<ComputationNode> negated = new ArrayList<>(1);
+            negated.add(new ComputationNode(ComputationNodeType.ADD, sum));
+            return new ComputationNode(ComputationNodeType.NEGATE, negated);
+        }
+        if (rightNegated) {
+            // A + (-B) = A - B
+            return subtract(left, right.getChildren().get(0));
+        }
+        if (leftNegated) {
+            // (-B) + A = A - B
+            return subtract(right, left.getChildren().get(0));
+        }
+        return node;
+    }
+
+    private static ComputationNode subtract(ComputationNode minuend, ComputationNode subtrahend) {
+        List<ComputationNode> operands = new ArrayList<>(2);
+        operands.add(minuend);
+        operands.add(subtrahend);
+        return new ComputationNode(ComputationNodeType.SUBTRACT, operands);
+    }
+
+    // marks an operand of a multiplication as read transposed. an operand that is already read
+    // transposed is read as is again, since T(T(X)) = X
+    private static ComputationNode foldTranspose(ComputationNode operand) {
+        operand.setTransposed(!operand.isTransposed());
+        return operand;
+    }
+}
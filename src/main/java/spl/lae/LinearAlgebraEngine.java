@@ -1,190 +1,1285 @@
 package spl.lae;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+import memory.BufferPool;
+import memory.GemmKernel;
+import memory.Kernels;
 import memory.SharedMatrix;
 import memory.SharedVector;
+import memory.SparseKernels;
+import memory.SparseMatrix;
+import memory.SparseRowBlock;
+import memory.TileStore;
+import memory.TiledMatrix;
 import memory.VectorOrientation;
+import monitoring.NodeEvent;
+import monitoring.NodeMetrics;
+import monitoring.RunMetrics;
 import parser.ComputationNode;
 import parser.ComputationNodeType;
+import scheduling.SchedulingMode;
 import scheduling.TiredExecutor;
+import scheduling.WorkKind;
 
 public class LinearAlgebraEngine {
 
-    private SharedMatrix leftMatrix = new SharedMatrix();
-    private SharedMatrix rightMatrix = new SharedMatrix();
+    // a task should do at least about this many elementary operations, so handing it to a worker costs little
+    // next to the work itself, and a node is split into at most TASKS_PER_WORKER tasks per worker
+    private static final long MIN_TASK_COST = 1 << 15;
+    private static final int TASKS_PER_WORKER = 4;
+    // cost of visiting (and locking) one vector, on top of the work on its elements
+    private static final long VECTOR_COST = 16;
+
     private TiredExecutor executor;
+    // runs what follows a node's batch (resolving the node, loading and submitting its parent) off the
+    // workers, so a worker's measured task time is only its task's work. a continuation mostly waits for the
+    // evaluation's lock, so a virtual thread per continuation is enough
+    private final ExecutorService orchestrator = Executors.newVirtualThreadPerTaskExecutor();
+    private final int numThreads;
+    // results of earlier subtrees, reused by later runs on this engine (disabled with a capacity of 0)
+    private final ResultCache cache;
+    // storage of consumed intermediates, reused by the next ones (disabled with a capacity of 0)
+    private final BufferPool pool;
+    // directory the matrices of out-of-core jobs are stored in, and their tile size (null when jobs run in the heap)
+    private final Path spillDirectory;
+    private final int tileSize;
+    // bytes of intermediate results a run keeps alive at a time, when it can (0 for no limit, see dispatch)
+    private final long memoryBudget;
+
+    /**
+     * Per-node evaluation state: the operands loaded for one node, the storage its result is
+     * written into and the tasks computing it. Several nodes can be in flight at the same time,
+     * so nothing about a single node's computation is kept in engine fields.
+     */
+    private static class NodeState {
+        final ComputationNode node;
+        SharedMatrix leftMatrix;
+        SharedMatrix rightMatrix; // only used for binary nodes
+        double[] product; // only used for MULTIPLY nodes with a dense result
+        int resultRows;
+        int resultCols;
+        // only used for nodes with a sparse result: either the blocks of rows the tasks fill (and whether the
+        // elements missing from them are -0.0), or the result itself when its structure is known up front
+        // (NEGATE, TRANSPOSE)
+        List<SparseRowBlock> sparseBlocks;
+        boolean negativeZeros;
+        SparseMatrix sparseResult;
+        // only used for nodes with out-of-core operands: the result, stored out of core as well
+        TiledMatrix tiledResult;
+        List<Runnable> tasks;
+        // the result is a view over storage someone else may still read (a transpose of a shared operand)
+        boolean sharesStorage;
+        // the operands, which the node no longer holds once it is resolved
+        List<ComputationNode> children;
+        // pooled storage the result is written into, or the operand whose storage the result lives in
+        // (computed in place, or a view of it). either way the result's storage is released with the result
+        double[] storage;
+        ComputationNode storageOf;
+        // pooled storage of a temporary copy of an operand, released as soon as the tasks are done
+        double[] scratch;
+
+        NodeState(ComputationNode node) {
+            this.node = node;
+        }
+    }
 
     public LinearAlgebraEngine(int numThreads) {
-        executor = new TiredExecutor(numThreads);
+        this(numThreads, 0);
+    }
+
+    /**
+     * Creates an engine that keeps up to cacheBytes of computed results between runs.
+     */
+    public LinearAlgebraEngine(int numThreads, long cacheBytes) {
+        this(numThreads, cacheBytes, SchedulingMode.FATIGUE);
+    }
+
+    /**
+     * Creates an engine that keeps up to cacheBytes of computed results between runs, and places tasks on
+     * its workers the given way.
+     */
+    public LinearAlgebraEngine(int numThreads, long cacheBytes, SchedulingMode mode) {
+        this(numThreads, cacheBytes, mode, 0);
+    }
+
+    /**
+     * Creates an engine that also keeps up to poolBytes of idle intermediate storage, so the intermediates
+     * of later nodes and runs are stored in the buffers of consumed ones instead of newly allocated arrays.
+     */
+    public LinearAlgebraEngine(int numThreads, long cacheBytes, SchedulingMode mode, long poolBytes) {
+        this(numThreads, cacheBytes, mode, poolBytes, null, TileStore.DEFAULT_TILE_SIZE);
+    }
+
+    /**
+     * Creates an engine whose jobs run out of core when spillDirectory is not null: their matrices are
+     * stored in memory-mapped files of tileSize x tileSize tiles under spillDirectory (see openTileStore),
+     * and every operator streams tiles through a few tile buffers per worker, so a job is limited by the
+     * disk rather than by the heap.
+     */
+    public LinearAlgebraEngine(int numThreads, long cacheBytes, SchedulingMode mode, long poolBytes,
+                               Path spillDirectory, int tileSize) {
+        this(numThreads, cacheBytes, mode, poolBytes, spillDirectory, tileSize, 0);
+    }
+
+    /**
+     * Creates an engine whose runs keep at most memoryBudget bytes of intermediate results alive at a time:
+     * a ready node is only started when the result it allocates fits in the budget next to the live ones,
+     * or when nothing else is in flight (see MemoryPlan). 0 means no limit.
+     */
+    public LinearAlgebraEngine(int numThreads, long cacheBytes, SchedulingMode mode, long poolBytes,
+                               Path spillDirectory, int tileSize, long memoryBudget) {
+        executor = new TiredExecutor(numThreads, mode);
+        this.numThreads = numThreads;
+        this.cache = new ResultCache(cacheBytes);
+        this.pool = new BufferPool(poolBytes);
+        this.spillDirectory = spillDirectory;
+        this.tileSize = tileSize;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Opens the store a job's matrices are kept in when the engine runs jobs out of core, or returns null
+     * when it runs them in the heap. The job parses its input into the store and closes it once its result
+     * is written, which deletes every file of the job.
+     */
+    public TileStore openTileStore() throws IOException {
+        return spillDirectory == null ? null : new TileStore(spillDirectory, tileSize);
     }
 
     public ComputationNode run(ComputationNode computationRoot) {
+        return run(computationRoot, null);
+    }
+
+    /**
+     * Runs the computation, recording its plan and compute phases and every computed node into metrics
+     * (nothing is recorded when metrics is null).
+     */
+    public ComputationNode run(ComputationNode computationRoot, RunMetrics metrics) {
         //if the given root is matrix type - return it
         if (computationRoot.getNodeType() == ComputationNodeType.MATRIX) {
             return computationRoot;
         }
-        //while root is not a matrix 
-        while (computationRoot.getNodeType() != ComputationNodeType.MATRIX) { 
-            //find a resolvable node
-            ComputationNode curr = computationRoot.findResolvable();
-            //if resolveable node is null -> he is a matrix, so stop the loop
-            if (curr == null) {
-                break;
-            }
-            //if resolveable node has more than 2 children - "fix the tree" with associativeNesting method
-            if (curr.getChildren().size() > 2) {
-                curr.associativeNesting();
-                //dont try to compute curr node - we will find the node in future iterations
-                continue;
+        long planStart = System.nanoTime();
+        if (metrics != null) {
+            metrics.setExecutor(executor);
+            metrics.setBufferPool(pool);
+        }
+        //choosing the cheapest nesting of n-ary operations before anything is computed
+        computationRoot.planNesting();
+        //removing nodes that would only materialize an intermediate (double transposes / negations etc.)
+        computationRoot = ExpressionOptimizer.optimize(computationRoot);
+        if (computationRoot.getNodeType() == ComputationNodeType.MATRIX) {
+            return computationRoot;
+        }
+        //hashing every subtree, so a subtree that appears more than once is computed only once: the first
+        //occurrence is computed and the others (its aliases) are resolved with its result. subtrees whose
+        //result is still cached from an earlier run are resolved right away
+        Map<ComputationNode, SubtreeHash> hashes = new IdentityHashMap<>();
+        hashSubtree(computationRoot, hashes);
+        Map<SubtreeHash, ComputationNode> firsts = new HashMap<>();
+        Map<ComputationNode, List<ComputationNode>> aliases = new IdentityHashMap<>();
+        deduplicate(computationRoot, hashes, firsts, aliases);
+        if (computationRoot.getNodeType() == ComputationNodeType.MATRIX) {
+            recordPhase(metrics, "plan", planStart);
+            return computationRoot;
+        }
+        //recording every node's parent and how many of its children are still unresolved,
+        //so a node can be started the moment its last child resolves
+        Map<ComputationNode, ComputationNode> parents = new IdentityHashMap<>();
+        Map<ComputationNode, AtomicInteger> pendingChildren = new IdentityHashMap<>();
+        List<ComputationNode> ready = new ArrayList<>();
+        mapDependencies(computationRoot, parents, pendingChildren, hashes, firsts, ready);
+        //ordering the nodes so the fewest intermediate bytes are alive at a time (aliased nodes are never
+        //computed in place, their results are read again)
+        MemoryPlan plan = new MemoryPlan(computationRoot, pendingChildren, aliases, cache.isEnabled());
+        //starting every node that can be resolved right now, in the plan's order and as far as the memory
+        //budget allows. each one continues into its parent when done, so independent subtrees overlap on the
+        //workers and nothing waits for an unrelated node
+        Evaluation evaluation = new Evaluation(computationRoot, parents, pendingChildren, hashes, aliases, plan, metrics);
+        recordPhase(metrics, "plan", planStart);
+        long computeStart = System.nanoTime();
+        evaluation.lock.lock();
+        try {
+            evaluation.waiting.addAll(ready);
+        } finally {
+            evaluation.lock.unlock();
+        }
+        dispatch(evaluation);
+        CompletableFuture<Void> rootDone = evaluation.rootDone;
+        //parking until the root is resolved (or a node failed)
+        try {
+            rootDone.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        } finally {
+            recordPhase(metrics, "compute", computeStart);
+            if (metrics != null) {
+                metrics.recordMemory(memoryBudget, plan.predictedPeakBytes(), evaluation.peakBytes());
             }
-            //load and compute curr node 
-            loadAndCompute(curr);
         }
         return computationRoot;
     }
 
+    private static void recordPhase(RunMetrics metrics, String phase, long start) {
+        if (metrics != null) {
+            metrics.recordPhase(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * The bookkeeping of one run: who waits for whom, and the future completed when the root is resolved.
+     */
+    private static class Evaluation {
+        final ComputationNode root;
+        final Map<ComputationNode, ComputationNode> parents;
+        final Map<ComputationNode, AtomicInteger> pendingChildren;
+        final Map<ComputationNode, SubtreeHash> hashes;
+        final Map<ComputationNode, List<ComputationNode>> aliases;
+        final RunMetrics metrics; // null when metrics are off
+        final CompletableFuture<Void> rootDone = new CompletableFuture<>();
+        // the pooled storage of every resolved node nobody else holds, until its parent consumes it
+        final Map<ComputationNode, double[]> buffers = Collections.synchronizedMap(new IdentityHashMap<>());
+        final MemoryPlan plan;
+        // guards everything below: the ready nodes not started yet (by the plan's rank), the nodes in flight,
+        // and the intermediate bytes alive - reserved for the nodes in flight, held by resolved nodes their
+        // parents did not consume yet (by node), and the most that were ever alive at once
+        final ReentrantLock lock = new ReentrantLock();
+        final PriorityQueue<ComputationNode> waiting;
+        int inFlight = 0;
+        long liveBytes = 0;
+        long peakBytes = 0;
+        final Map<ComputationNode, Long> heldBytes = new IdentityHashMap<>();
+
+        Evaluation(ComputationNode root, Map<ComputationNode, ComputationNode> parents,
+                   Map<ComputationNode, AtomicInteger> pendingChildren, Map<ComputationNode, SubtreeHash> hashes,
+                   Map<ComputationNode, List<ComputationNode>> aliases, MemoryPlan plan, RunMetrics metrics) {
+            this.root = root;
+            this.parents = parents;
+            this.pendingChildren = pendingChildren;
+            this.hashes = hashes;
+            this.aliases = aliases;
+            this.plan = plan;
+            this.metrics = metrics;
+            this.waiting = new PriorityQueue<>((a, b) -> Integer.compare(plan.rank(a), plan.rank(b)));
+        }
+
+        long peakBytes() {
+            lock.lock();
+            try {
+                return peakBytes;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // hashes every node of the tree, children before their parents
+    private static void hashSubtree(ComputationNode node, Map<ComputationNode, SubtreeHash> hashes) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            hashes.put(node, SubtreeHash.ofLeaf(node));
+            return;
+        }
+        for (ComputationNode child : node.getChildren()) {
+            hashSubtree(child, hashes);
+        }
+        hashes.put(node, SubtreeHash.ofOperation(node, hashes));
+    }
+
+    // walks the tree from the root, so the largest repeated subtrees are found first: an operation node is
+    // resolved from the cache, or becomes an alias of an earlier node with the same hash (and its subtree is
+    // never visited), or is the first of its kind and has its children deduplicated in turn
+    private void deduplicate(ComputationNode node, Map<ComputationNode, SubtreeHash> hashes,
+                             Map<SubtreeHash, ComputationNode> firsts, Map<ComputationNode, List<ComputationNode>> aliases) {
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            return;
+        }
+        SubtreeHash hash = hashes.get(node);
+        ComputationNode cached = cache.isEnabled() ? cache.get(hash) : null;
+        if (cached != null) {
+            node.resolve(cached);
+            node.setShared(true);
+            return;
+        }
+        ComputationNode first = firsts.putIfAbsent(hash, node);
+        if (first != null) {
+            aliases.computeIfAbsent(first, k -> new ArrayList<>()).add(node);
+            return;
+        }
+        for (ComputationNode child : node.getChildren()) {
+            deduplicate(child, hashes, firsts, aliases);
+        }
+    }
+
+    // fills the parent of every operation node and the number of its children that are not matrices yet, and
+    // collects the nodes that can start right away. aliases are waited for like any other child, but their
+    // subtrees are never computed
+    private static void mapDependencies(ComputationNode node, Map<ComputationNode, ComputationNode> parents,
+                                        Map<ComputationNode, AtomicInteger> pendingChildren,
+                                        Map<ComputationNode, SubtreeHash> hashes, Map<SubtreeHash, ComputationNode> firsts,
+                                        List<ComputationNode> ready) {
+        int pending = 0;
+        for (ComputationNode child : node.getChildren()) {
+            if (child.getNodeType() != ComputationNodeType.MATRIX) {
+                parents.put(child, node);
+                pending++;
+                // an alias is not the first node with its hash
+                if (firsts.get(hashes.get(child)) == child) {
+                    mapDependencies(child, parents, pendingChildren, hashes, firsts, ready);
+                }
+            }
+        }
+        pendingChildren.put(node, new AtomicInteger(pending));
+        if (pending == 0) {
+            ready.add(node);
+        }
+    }
+
+    // loads a node whose children are all resolved and submits its tasks as one batch. when the batch is done
+    // (on the orchestrator, not on the worker that finished it) the node and its aliases are resolved, and the
+    // parent of each of them is started if it was the last child that parent was waiting for
+    private void launch(ComputationNode node, Evaluation evaluation) {
+        CompletableFuture<Void> rootDone = evaluation.rootDone;
+        if (rootDone.isDone()) {
+            return; // another node already failed - no point in computing more
+        }
+        try {
+            ComputationNodeType type = node.getNodeType();
+            // spanning the node on a flight recording's timeline (a no-op when none is running)
+            NodeEvent event = new NodeEvent();
+            event.begin();
+            // the node's cost guides where its tasks are placed
+            long flops = estimateFlops(node);
+            NodeState state = load(node);
+            List<ComputationNode> nodeAliases = evaluation.aliases.getOrDefault(node, List.of());
+            NodeMetrics nodeMetrics = null;
+            if (evaluation.metrics != null) {
+                nodeMetrics = evaluation.metrics.startNode(type.name(), evaluation.hashes.get(node).toString(), state.tasks.size());
+                state.tasks = instrument(state.tasks, nodeMetrics);
+            }
+            NodeMetrics finalNodeMetrics = nodeMetrics;
+            executor.submitAllAsync(state.tasks, taskCost(state, flops), workKind(state)).whenCompleteAsync((ignored, failure) -> {
+                if (failure != null) {
+                    rootDone.completeExceptionally(failure);
+                    return;
+                }
+                List<ComputationNode> resolved = new ArrayList<>();
+                resolved.add(node);
+                try {
+                    complete(state);
+                    // products are worth keeping for later runs, and so is the whole result
+                    // (out-of-core results only live as long as their job's files)
+                    if (cache.isEnabled() && !node.isTiled() && (type == ComputationNodeType.MULTIPLY || node == evaluation.root)) {
+                        cache.put(evaluation.hashes.get(node), node);
+                        node.setShared(true);
+                    }
+                    for (ComputationNode alias : nodeAliases) {
+                        alias.resolve(node);
+                        alias.setShared(true);
+                        node.setShared(true);
+                        resolved.add(alias);
+                    }
+                    recycle(state, evaluation.buffers);
+                    settle(state, evaluation);
+                    if (finalNodeMetrics != null) {
+                        finalNodeMetrics.finish(resultRows(node), resultCols(node), nodeAliases.size());
+                    }
+                    reportNode(event, state, type, flops);
+                    for (ComputationNode done : resolved) {
+                        if (done == evaluation.root) {
+                            rootDone.complete(null);
+                            continue;
+                        }
+                        ComputationNode parent = evaluation.parents.get(done);
+                        if (evaluation.pendingChildren.get(parent).decrementAndGet() == 0) {
+                            evaluation.lock.lock();
+                            try {
+                                evaluation.waiting.add(parent);
+                            } finally {
+                                evaluation.lock.unlock();
+                            }
+                        }
+                    }
+                    dispatch(evaluation);
+                } catch (Throwable e) {
+                    // errors too (e.g. running out of memory for the parent's result): the future would swallow
+                    // them, and the run would wait for its root forever
+                    rootDone.completeExceptionally(e);
+                }
+            }, orchestrator);
+        } catch (Throwable e) {
+            rootDone.completeExceptionally(e);
+        }
+    }
+
+    // starts the ready nodes in the plan's order, each one as soon as the result it allocates fits in the memory
+    // budget next to the intermediates already alive. the nodes are started strictly in order, so a node that
+    // does not fit holds back the ones after it until a node in flight consumes its operands - and a node that
+    // would not fit even alone is started once nothing else is in flight, so the run always completes.
+    // idle pooled buffers count against the budget as well, but give way: the pool is trimmed to what is left
+    private void dispatch(Evaluation evaluation) {
+        while (true) {
+            ComputationNode next;
+            evaluation.lock.lock();
+            try {
+                next = evaluation.waiting.peek();
+                if (next == null) {
+                    return;
+                }
+                long bytes = evaluation.plan.allocBytes(next);
+                if (memoryBudget > 0 && evaluation.inFlight > 0 && evaluation.liveBytes + bytes > memoryBudget) {
+                    return;
+                }
+                if (memoryBudget > 0) {
+                    pool.trim(memoryBudget - evaluation.liveBytes - bytes);
+                }
+                evaluation.waiting.poll();
+                evaluation.inFlight++;
+                evaluation.liveBytes += bytes;
+                recordPeak(evaluation);
+            } finally {
+                evaluation.lock.unlock();
+            }
+            launch(next, evaluation);
+        }
+    }
+
+    // replaces the bytes reserved for a resolved node with the bytes its result actually holds (nothing new
+    // when it lives in an operand's storage, which it takes over), and frees the bytes of its other operands
+    private void settle(NodeState state, Evaluation evaluation) {
+        ComputationNode node = state.node;
+        evaluation.lock.lock();
+        try {
+            evaluation.inFlight--;
+            evaluation.liveBytes -= evaluation.plan.allocBytes(node);
+            long held = 0;
+            for (ComputationNode child : state.children) {
+                Long childBytes = evaluation.heldBytes.remove(child);
+                if (childBytes == null) {
+                    continue; // an input matrix, or a result of an earlier run
+                }
+                if (child == state.storageOf) {
+                    held = childBytes;
+                } else {
+                    evaluation.liveBytes -= childBytes;
+                }
+            }
+            if (state.storageOf == null) {
+                // an out-of-core result is stored in a file, not in the heap
+                held = node.isTiled() ? 0 : resultBytes(node);
+                evaluation.liveBytes += held;
+            }
+            evaluation.heldBytes.put(node, held);
+            recordPeak(evaluation);
+        } finally {
+            evaluation.lock.unlock();
+        }
+    }
+
+    // the intermediates of a run take its live bytes, and the idle buffers of the pool, which keeps them for reuse
+    // (called with the evaluation's lock held)
+    private void recordPeak(Evaluation evaluation) {
+        evaluation.peakBytes = Math.max(evaluation.peakBytes, evaluation.liveBytes + pool.idleBytes());
+    }
+
+    // hands the storage of the node's operands back to the pool now that the node is resolved, and records the
+    // storage of its result, to be released in turn by its parent. storage that is still read elsewhere (the
+    // operand of an alias, a cached result, the root) is never released, and is left to the garbage collector
+    private void recycle(NodeState state, Map<ComputationNode, double[]> buffers) {
+        double[] storage = state.storage;
+        for (ComputationNode child : state.children) {
+            if (child.isTiled()) {
+                // an out-of-core operand's file is deleted the same way
+                if (child != state.storageOf && !child.isShared()) {
+                    child.getTiledMatrix().release();
+                }
+                continue;
+            }
+            double[] buffer = buffers.remove(child);
+            if (buffer == null) {
+                continue;
+            }
+            if (child == state.storageOf) {
+                // the result was computed into the operand's storage, so the storage now belongs to the result
+                storage = buffer;
+            } else if (!child.isShared()) {
+                pool.release(buffer);
+            }
+        }
+        if (storage != null && !state.node.isShared()) {
+            buffers.put(state.node, storage);
+        }
+    }
+
+    // wraps every task of a node so it records into the node's metrics
+    private static List<Runnable> instrument(List<Runnable> tasks, NodeMetrics nodeMetrics) {
+        List<Runnable> instrumented = new ArrayList<>(tasks.size());
+        for (Runnable task : tasks) {
+            instrumented.add(nodeMetrics.instrument(task));
+        }
+        return instrumented;
+    }
+
     public void loadAndCompute(ComputationNode node) {
-        double[][] result;
-        // Assuming given node has 2 matrix childs
-        // Loading the left child, as it's the matrix in the head of the list index(0).
-        leftMatrix.loadRowMajor(node.getChildren().get(0).getMatrix());
-        // Case 1 - add operator:
-        if (node.getNodeType() == ComputationNodeType.ADD) {
-            // Loading the right matrix (index 1) as rows as well
-            rightMatrix.loadRowMajor(node.getChildren().get(1).getMatrix());
-            // Creating the tasks in the executer and running them
-            executor.submitAll(createAddTasks());
+        ComputationNodeType type = node.getNodeType();
+        NodeEvent event = new NodeEvent();
+        event.begin();
+        long flops = estimateFlops(node);
+        // loading the node's operands and creating its tasks
+        NodeState state = load(node);
+        // running the tasks in the executor
+        executor.submitAll(state.tasks, taskCost(state, flops), workKind(state));
+        // reading the result into the node
+        complete(state);
+        reportNode(event, state, type, flops);
+    }
+
+    // the estimated cost of each task of a node: the tasks of a node are sized to cost about the same
+    private static long taskCost(NodeState state, long flops) {
+        return Math.max(1, flops / Math.max(1, state.tasks.size()));
+    }
+
+    // what the units of a node's cost count (see estimateFlops), so workers are only compared on the same kind
+    // of work when tasks are placed by measured speed
+    private static WorkKind workKind(NodeState state) {
+        if (state.tiledResult != null) {
+            return WorkKind.OUT_OF_CORE;
+        }
+        for (ComputationNode child : state.children) {
+            if (child.isSparse()) {
+                return WorkKind.SPARSE;
+            }
+        }
+        return state.node.getNodeType() == ComputationNodeType.MULTIPLY ? WorkKind.MULTIPLY : WorkKind.ELEMENTWISE;
+    }
+
+    // commits the flight recorder event of a resolved node (type is the operator it had before it was resolved)
+    private static void reportNode(NodeEvent event, NodeState state, ComputationNodeType type, long flops) {
+        if (!event.isEnabled()) {
+            return;
+        }
+        ComputationNode node = state.node;
+        event.report(type.name(), resultRows(node), resultCols(node), state.tasks.size(),
+                flops, node.isSparse(), resultBytes(node));
+    }
+
+    // bytes of a resolved node's result (an out-of-core result's bytes are on disk)
+    private static long resultBytes(ComputationNode node) {
+        return node.isSparse()
+                ? node.getSparseMatrix().nonZeros() * (long) (Double.BYTES + Integer.BYTES)
+                : (long) resultRows(node) * resultCols(node) * Double.BYTES;
+    }
+
+    // dimensions of a resolved node, without densifying a sparse result
+    static int resultRows(ComputationNode node) {
+        if (node.isTiled()) {
+            return node.getTiledMatrix().rows();
+        }
+        return node.isSparse() ? node.getSparseMatrix().rows() : node.getSharedMatrix().rows();
+    }
+
+    static int resultCols(ComputationNode node) {
+        if (node.isTiled()) {
+            return node.getTiledMatrix().cols();
+        }
+        return node.isSparse() ? node.getSparseMatrix().cols() : node.getSharedMatrix().cols();
+    }
+
+    // rough number of floating point operations of a node whose children are resolved: multiply-adds of a
+    // product count twice, and only the non-zeros of sparse operands are counted
+    private static long estimateFlops(ComputationNode node) {
+        List<ComputationNode> children = node.getChildren();
+        ComputationNode left = children.get(0);
+        switch (node.getNodeType()) {
+            case MULTIPLY: {
+                ComputationNode right = children.get(1);
+                long m = left.isTransposed() ? resultCols(left) : resultRows(left);
+                long k = left.isTransposed() ? resultRows(left) : resultCols(left);
+                long n = right.isTransposed() ? resultRows(right) : resultCols(right);
+                if (left.isSparse() && right.isSparse()) {
+                    // every non-zero of the left meets the non-zeros of one row of the right, on average
+                    return k == 0 ? 0 : 2L * left.getSparseMatrix().nonZeros() * right.getSparseMatrix().nonZeros() / k;
+                }
+                if (left.isSparse()) {
+                    return 2 * left.getSparseMatrix().nonZeros() * n;
+                }
+                if (right.isSparse()) {
+                    return 2 * m * right.getSparseMatrix().nonZeros();
+                }
+                return 2 * m * k * n;
+            }
+            case ADD:
+            case SUBTRACT:
+            case NEGATE: {
+                long flops = 0;
+                for (ComputationNode child : children) {
+                    flops = Math.max(flops, child.isSparse()
+                            ? child.getSparseMatrix().nonZeros()
+                            : (long) resultRows(child) * resultCols(child));
+                }
+                return flops;
+            }
+            default:
+                return 0; // a transpose only moves values
+        }
+    }
+
+    // loads the operands of a node whose children are all matrices, and creates the tasks computing it.
+    // the children's matrices are handed over as they are - nothing is copied or read back here
+    private NodeState load(ComputationNode node) {
+        NodeState state = new NodeState(node);
+        state.children = node.getChildren();
+        for (ComputationNode child : node.getChildren()) {
+            if (child.isTiled()) {
+                return loadTiled(state);
+            }
+        }
+        for (ComputationNode child : node.getChildren()) {
+            if (child.isSparse()) {
+                return loadSparse(state);
+            }
+        }
+        ComputationNode leftChild = node.getChildren().get(0);
+        ComputationNodeType type = node.getNodeType();
+        // Case 1 - add / subtract operator (the result is computed in place, into the left matrix):
+        if (type == ComputationNodeType.ADD || type == ComputationNodeType.SUBTRACT) {
+            // this node is the only consumer of its child's matrix, so it becomes the owner and may write it
+            state.leftMatrix = ownLeftOperand(state, leftChild);
+            // the right matrix is only read. when it is stored the same way as the left one the vectors are
+            // added pairwise
+            SharedMatrix rightMatrix = node.getChildren().get(1).getSharedMatrix();
+            if (rightMatrix.rows() != state.leftMatrix.rows() || rightMatrix.cols() != state.leftMatrix.cols()) {
+                throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+            }
+            state.rightMatrix = rightMatrix;
+            // Creating the tasks for the executer
+            if (rightMatrix.getOrientation() != state.leftMatrix.getOrientation()) {
+                // e.g. X + T(Y): the right matrix is read across its vectors rather than copied to match
+                state.tasks = createCrossOrientationTasks(state.leftMatrix, rightMatrix, type == ComputationNodeType.ADD ? 1 : -1);
+            } else if (type == ComputationNodeType.ADD) {
+                state.tasks = createAddTasks(state.leftMatrix, state.rightMatrix);
+            } else {
+                state.tasks = createSubtractTasks(state.leftMatrix, state.rightMatrix);
+            }
         }
           // Case 2 - Multiply operator:
-        else if (node.getNodeType() == ComputationNodeType.MULTIPLY) {
-            // Loading the right matrix (index 1) as columns
-            rightMatrix.loadColumnMajor(node.getChildren().get(1).getMatrix());
-            // Creating the tasks in the executer and running them
-            executor.submitAll(createMultiplyTasks());
+        else if (type == ComputationNodeType.MULTIPLY) {
+            // both operands are only read - the tiled kernel packs them by itself, whichever way they are stored.
+            // operands whose transpose was folded into this node are read through a transposed view of them
+            SharedMatrix leftMatrix = leftChild.getSharedMatrix();
+            SharedMatrix rightMatrix = node.getChildren().get(1).getSharedMatrix();
+            if (leftChild.isTransposed()) {
+                leftMatrix = leftMatrix.transposedView();
+            }
+            if (node.getChildren().get(1).isTransposed()) {
+                rightMatrix = rightMatrix.transposedView();
+            }
+            if (leftMatrix.cols() != rightMatrix.rows()) {
+                throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+            }
+            state.leftMatrix = leftMatrix;
+            state.rightMatrix = rightMatrix;
+            state.resultRows = leftMatrix.rows();
+            state.resultCols = rightMatrix.cols();
+            // the product is written into a new contiguous row-major matrix, tile by tile. the tiles add up
+            // their panels, so a pooled buffer is cleared first
+            state.product = pool.acquireZeroed(leftMatrix.rows() * rightMatrix.cols());
+            state.storage = state.product;
+            // Creating the tasks for the executer
+            state.tasks = createMultiplyTasks(leftMatrix, rightMatrix, state.product);
         }
         // Case 3 - Negate operator:
-        else if (node.getNodeType() == ComputationNodeType.NEGATE) {
-            // Creating the tasks in the executer and running them
-            executor.submitAll(createNegateTasks());
-        }
-        // Case 4 - Transpose operator:
-        else if (node.getNodeType() == ComputationNodeType.TRANSPOSE) {
-            // Creating the tasks in the executer and running them
-            executor.submitAll(createTransposeTasks());
-            // Changing orientation in the matrix "defintion" level
-            leftMatrix.setOrientation(VectorOrientation.COLUMN_MAJOR);
-        }
-        // Locking the left matrix with readRowMajor, so we can read the correct data
-        result = leftMatrix.readRowMajor();
+        else if (type == ComputationNodeType.NEGATE) {
+            state.leftMatrix = ownLeftOperand(state, leftChild);
+            // Creating the tasks for the executer
+            state.tasks = createNegateTasks(state.leftMatrix);
+        }
+        // Case 4 - Transpose operator: the result is a view over the operand's storage with the roles of its
+        // vectors swapped, so nothing is computed or copied - consumers read it through its orientation, and
+        // it is only gathered row by row when the result is written. the view shares the operand's storage,
+        // so it has to be copied before being written if the operand is shared
+        else if (type == ComputationNodeType.TRANSPOSE) {
+            state.leftMatrix = leftChild.getSharedMatrix().transposedView();
+            state.sharesStorage = leftChild.isShared();
+            state.storageOf = leftChild;
+            state.tasks = new ArrayList<Runnable>();
+        }
+        return state;
+    }
+
+    // loads a node with at least one sparse operand. sparse operands are only read: the result is either a new
+    // sparse matrix, or a dense one when a dense operand makes it dense anyway (sparse + dense, sparse * dense)
+    private NodeState loadSparse(NodeState state) {
+        ComputationNode node = state.node;
+        ComputationNode leftChild = node.getChildren().get(0);
+        ComputationNodeType type = node.getNodeType();
+        // Case 1 - add / subtract operator:
+        if (type == ComputationNodeType.ADD || type == ComputationNodeType.SUBTRACT) {
+            ComputationNode rightChild = node.getChildren().get(1);
+            double sign = type == ComputationNodeType.SUBTRACT ? -1 : 1;
+            if (resultRows(leftChild) != resultRows(rightChild) || resultCols(leftChild) != resultCols(rightChild)) {
+                throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+            }
+            if (leftChild.isSparse() && rightChild.isSparse()) {
+                // the sum of two sparse matrices is sparse, merged row by row
+                SparseMatrix left = leftChild.getSparseMatrix().toOrientation(VectorOrientation.ROW_MAJOR);
+                SparseMatrix right = rightChild.getSparseMatrix().toOrientation(VectorOrientation.ROW_MAJOR);
+                state.resultRows = left.rows();
+                state.resultCols = left.cols();
+                state.negativeZeros = SparseKernels.sumHasNegativeZeros(left, right, sign);
+                state.sparseBlocks = createRowBlocks(left.rows(), (long) left.nonZeros() + right.nonZeros());
+                state.tasks = createSparseAddTasks(left, right, sign, state.sparseBlocks);
+            } else if (leftChild.isSparse()) {
+                // sparse + dense is dense: the non-zeros are added into a private copy of the dense operand,
+                // which is negated on the way for a subtraction
+                SparseMatrix left = leftChild.getSparseMatrix().toOrientation(VectorOrientation.ROW_MAJOR);
+                SharedMatrix dense = rightChild.getSharedMatrix();
+                state.storage = pool.acquire(dense.rows() * dense.cols());
+                state.leftMatrix = dense.copyAs(VectorOrientation.ROW_MAJOR, state.storage);
+                state.tasks = createSparseToDenseTasks(left, 1, state.leftMatrix, sign < 0);
+            } else {
+                // dense + sparse: the non-zeros are added into the dense left operand, in place
+                state.leftMatrix = ownLeftOperand(state, leftChild);
+                SparseMatrix right = rightChild.getSparseMatrix().toOrientation(VectorOrientation.ROW_MAJOR);
+                state.tasks = createSparseToDenseTasks(right, sign, state.leftMatrix, false);
+            }
+        }
+        // Case 2 - Multiply operator:
+        else if (type == ComputationNodeType.MULTIPLY) {
+            ComputationNode rightChild = node.getChildren().get(1);
+            int rows = transposedRows(leftChild);
+            int inner = transposedCols(leftChild);
+            if (inner != transposedRows(rightChild)) {
+                throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+            }
+            state.resultRows = rows;
+            state.resultCols = transposedCols(rightChild);
+            if (leftChild.isSparse() && rightChild.isSparse()) {
+                // the product of two sparse matrices is computed sparse (Gustavson), row by row
+                SparseMatrix left = sparseOperand(leftChild);
+                SparseMatrix right = sparseOperand(rightChild);
+                state.sparseBlocks = createRowBlocks(rows, inner == 0 ? 0 : 2L * left.nonZeros() * right.nonZeros() / inner);
+                state.tasks = createSparseMultiplyTasks(left, right, state.sparseBlocks);
+            } else if (leftChild.isSparse()) {
+                // the dense right operand is read row by row, so it is laid out by rows first
+                SparseMatrix left = sparseOperand(leftChild);
+                SharedMatrix right = rightChild.getSharedMatrix();
+                if (rightChild.isTransposed()) {
+                    right = right.transposedView();
+                }
+                if (right.getOrientation() != VectorOrientation.ROW_MAJOR) {
+                    state.scratch = pool.acquire(right.rows() * right.cols());
+                    right = right.copyAs(VectorOrientation.ROW_MAJOR, state.scratch);
+                }
+                state.product = pool.acquireZeroed(rows * state.resultCols);
+                state.storage = state.product;
+                state.tasks = createSparseDenseMultiplyTasks(left, right, state.product);
+            } else {
+                SharedMatrix left = leftChild.getSharedMatrix();
+                if (leftChild.isTransposed()) {
+                    left = left.transposedView();
+                }
+                SparseMatrix right = sparseOperand(rightChild);
+                state.product = pool.acquireZeroed(rows * state.resultCols);
+                state.storage = state.product;
+                state.tasks = createDenseSparseMultiplyTasks(left, right, state.product);
+            }
+        }
+        // Case 3 - Negate operator: a matrix with the same structure and negated values, whose missing elements
+        // are the negated missing elements of the operand (-0.0 for +0.0), so nothing is densified
+        else if (type == ComputationNodeType.NEGATE) {
+            SparseMatrix source = leftChild.getSparseMatrix();
+            double[] values = new double[source.nonZeros()];
+            state.sparseResult = source.withValues(values, !source.hasNegativeZeros());
+            state.tasks = createSparseNegateTasks(source, values);
+        }
+        // Case 4 - Transpose operator: the CSR of a matrix is the CSC of its transpose, so nothing is computed
+        else if (type == ComputationNodeType.TRANSPOSE) {
+            state.sparseResult = leftChild.getSparseMatrix().transposedView();
+            state.tasks = new ArrayList<Runnable>();
+        }
+        return state;
+    }
+
+    // loads a node whose operands are stored out of core. the result is stored out of core as well, and the
+    // tasks stream the tiles of the operands through tile buffers: every task holds two or three tiles at a time
+    private NodeState loadTiled(NodeState state) {
+        ComputationNode node = state.node;
+        for (ComputationNode child : node.getChildren()) {
+            if (!child.isTiled()) {
+                throw new IllegalArgumentException("error: Illegal operation: out-of-core and in-memory operands can't be mixed");
+            }
+        }
+        ComputationNode leftChild = node.getChildren().get(0);
+        TiledMatrix left = leftChild.getTiledMatrix();
+        ComputationNodeType type = node.getNodeType();
+        // Case 1 - add / subtract operator: tile by tile, into the left operand's file when it is the only consumer
+        if (type == ComputationNodeType.ADD || type == ComputationNodeType.SUBTRACT) {
+            TiledMatrix right = node.getChildren().get(1).getTiledMatrix();
+            if (right.rows() != left.rows() || right.cols() != left.cols()) {
+                throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+            }
+            state.tiledResult = ownTiledOperand(state, leftChild);
+            if (type == ComputationNodeType.ADD) {
+                state.tasks = createTiledElementwiseTasks(left, right, state.tiledResult,
+                        (tile, other, length) -> Kernels.active().add(tile, 0, other, 0, length));
+            } else {
+                state.tasks = createTiledElementwiseTasks(left, right, state.tiledResult,
+                        (tile, other, length) -> Kernels.active().subtract(tile, 0, other, 0, length));
+            }
+        }
+        // Case 2 - Multiply operator: every tile of the product is accumulated from a row of tiles of the left
+        // operand and a column of tiles of the right one. folded transposes are read through transposed views
+        else if (type == ComputationNodeType.MULTIPLY) {
+            ComputationNode rightChild = node.getChildren().get(1);
+            TiledMatrix right = rightChild.getTiledMatrix();
+            if (leftChild.isTransposed()) {
+                left = left.transposedView();
+            }
+            if (rightChild.isTransposed()) {
+                right = right.transposedView();
+            }
+            if (left.cols() != right.rows()) {
+                throw new IllegalArgumentException("error: Illegal operation: dimensions mismatch");
+            }
+            state.tiledResult = left.store().create(left.rows(), right.cols());
+            state.tasks = createTiledMultiplyTasks(left, right, state.tiledResult);
+        }
+        // Case 3 - Negate operator: tile by tile, like add
+        else if (type == ComputationNodeType.NEGATE) {
+            state.tiledResult = ownTiledOperand(state, leftChild);
+            state.tasks = createTiledElementwiseTasks(left, null, state.tiledResult,
+                    (tile, other, length) -> Kernels.active().negate(tile, 0, length));
+        }
+        // Case 4 - Transpose operator: a view over the operand's file, like a transpose in the heap
+        else if (type == ComputationNodeType.TRANSPOSE) {
+            state.tiledResult = left.transposedView();
+            state.sharesStorage = leftChild.isShared();
+            state.storageOf = leftChild;
+            state.tasks = new ArrayList<Runnable>();
+        }
+        return state;
+    }
+
+    // the out-of-core matrix an elementwise node writes its result into: the left operand's own file when the
+    // node is its only consumer, or a new file (for a shared operand, or a transposed view, which can't be written)
+    private static TiledMatrix ownTiledOperand(NodeState state, ComputationNode child) {
+        TiledMatrix matrix = child.getTiledMatrix();
+        if (child.isShared() || matrix.isTransposed()) {
+            return matrix.store().create(matrix.rows(), matrix.cols());
+        }
+        state.storageOf = child;
+        return matrix;
+    }
+
+    // a sparse operand of a MULTIPLY node as CSR, read transposed if its transpose was folded into the node
+    private static SparseMatrix sparseOperand(ComputationNode child) {
+        SparseMatrix matrix = child.getSparseMatrix();
+        if (child.isTransposed()) {
+            matrix = matrix.transposedView();
+        }
+        return matrix.toOrientation(VectorOrientation.ROW_MAJOR);
+    }
+
+    // rows of a MULTIPLY operand, as the node reads it
+    private static int transposedRows(ComputationNode child) {
+        return child.isTransposed() ? resultCols(child) : resultRows(child);
+    }
+
+    // columns of a MULTIPLY operand, as the node reads it
+    private static int transposedCols(ComputationNode child) {
+        return child.isTransposed() ? resultRows(child) : resultCols(child);
+    }
+
+    // takes over the matrix of the only consumer's left operand for writing. a matrix that is shared
+    // with other nodes or with the result cache is copied first (copy-on-write), into pooled storage
+    private SharedMatrix ownLeftOperand(NodeState state, ComputationNode child) {
+        SharedMatrix matrix = child.getSharedMatrix();
+        if (child.isShared()) {
+            state.storage = pool.acquire(matrix.rows() * matrix.cols());
+            return matrix.copyAs(matrix.getOrientation(), state.storage);
+        }
+        matrix.claimForWriting();
+        state.storageOf = child;
+        return matrix;
+    }
+
+    // resolves a node whose tasks have all finished with its result. the result is handed to the node as is -
+    // the batch barrier guarantees no task writes it anymore, so it is published as a lock-free snapshot
+    private void complete(NodeState state) {
+        if (state.scratch != null) {
+            pool.release(state.scratch);
+        }
+        if (state.tiledResult != null) {
+            state.node.resolve(state.tiledResult);
+            if (state.sharesStorage) {
+                state.node.setShared(true);
+            }
+            return;
+        }
+        if (state.sparseBlocks != null || state.sparseResult != null) {
+            SparseMatrix sparse = state.sparseResult;
+            if (sparse == null) {
+                sparse = SparseRowBlock.assemble(state.resultRows, state.resultCols, state.sparseBlocks, state.negativeZeros);
+            }
+            // a result that filled in is faster to keep working with densely
+            if (sparse.density() > SparseMatrix.DENSIFY_DENSITY) {
+                state.storage = pool.acquireZeroed(sparse.rows() * sparse.cols());
+                state.node.resolve(sparse.toShared(state.storage));
+            } else {
+                state.node.resolve(sparse);
+            }
+            return;
+        }
+        SharedMatrix result = state.leftMatrix;
+        ComputationNodeType type = state.node.getNodeType();
+        if (state.product != null) {
+            // the product is a new row-major matrix over the storage the tiles were written into
+            result = new SharedMatrix();
+            result.loadRowMajor(state.product, state.resultRows, state.resultCols);
+        }
         // Using the "result" method, making sure the operator becomes the calculated matrix, without childrens
-        node.resolve(result);
+        state.node.resolve(result);
+        if (state.sharesStorage) {
+            state.node.setShared(true);
+        }
+    }
+
+    public List<Runnable> createAddTasks(SharedMatrix leftMatrix, SharedMatrix rightMatrix) {
+        // adding each range of elements of the right matrix to the same range of the left one
+        return createElementwiseTasks(leftMatrix, rightMatrix, (v1, v2, from, to) -> v1.add(v2, from, to));
+    }
+
+    public List<Runnable> createSubtractTasks(SharedMatrix leftMatrix, SharedMatrix rightMatrix) {
+        // subtracting each range of elements of the right matrix from the same range of the left one
+        return createElementwiseTasks(leftMatrix, rightMatrix, (v1, v2, from, to) -> v1.subtract(v2, from, to));
+    }
+
+    // an elementwise kernel, applied to elements [from, to) of a vector of the result and of the matching
+    // vector of the other operand (null for unary operators)
+    private interface RangeKernel {
+        void apply(SharedVector target, SharedVector other, int from, int to);
     }
 
-    public List<Runnable> createAddTasks() {
-        // creating an array of runnable (tasks) in the size of the leftMatrix dimension
-        List<Runnable> res = new ArrayList<Runnable>(leftMatrix.length());
-        // creating n tasks , where n is the number of rows
-        for (int i = 0 ; i < leftMatrix.length() ; i++) {
-            // Each iteration, the loop "sets" constant index, so when the future task will happen it has specific index.
-            final int index = i;
-            // creating lambda for future task, adding the matching row vector from the right matrix to the left
+    // splits the elements of target into chunks of about equal cost (see chunkCount) and creates one task per
+    // chunk. the storage is contiguous, so a chunk is a range of the flat element order: many short vectors
+    // are grouped into one task, and a few long ones are split between several tasks
+    private List<Runnable> createElementwiseTasks(SharedMatrix target, SharedMatrix other, RangeKernel kernel) {
+        int vectors = target.length();
+        int vectorLength = vectors == 0 ? 0 : target.get(0).length();
+        long elements = (long) vectors * vectorLength;
+        List<Runnable> res = new ArrayList<Runnable>();
+        if (elements == 0) {
+            return res;
+        }
+        int chunks = chunkCount(elements + vectors * VECTOR_COST);
+        for (int c = 0 ; c < chunks ; c++) {
+            // Each iteration, the loop "sets" constant bounds, so when the future task will happen it has a specific range.
+            final long start = elements * c / chunks;
+            final long end = elements * (c + 1) / chunks;
             res.add(() -> {
-                // locking the relevant vectors for write/read in each matrix
-                SharedVector v1 = leftMatrix.get(index);
-                SharedVector v2 = rightMatrix.get(index);
-                // lock write to left vector, lock read to right vector
-                v1.writeLock();
-                v2.readLock();
-                // applying add method on the vectors
-                try {
-                    v1.add(v2);
-                } finally {
-                // unlocking both vectors in opposite order
-                    v2.readUnlock();
-                    v1.writeUnlock();
+                // walking the vectors the range touches, locking each one only while its part of the range is done
+                long pos = start;
+                while (pos < end) {
+                    int index = (int) (pos / vectorLength);
+                    long vectorStart = (long) index * vectorLength;
+                    int from = (int) (pos - vectorStart);
+                    int to = (int) Math.min(vectorLength, end - vectorStart);
+                    SharedVector v1 = target.get(index);
+                    SharedVector v2 = other == null ? null : other.get(index);
+                    // lock write to the result vector, lock read to the other one
+                    v1.writeLock();
+                    if (v2 != null) {
+                        v2.readLock();
+                    }
+                    try {
+                        kernel.apply(v1, v2, from, to);
+                    } finally {
+                        // unlocking both vectors in opposite order
+                        if (v2 != null) {
+                            v2.readUnlock();
+                        }
+                        v1.writeUnlock();
+                    }
+                    pos = vectorStart + to;
                 }
             });
         }
         return res;
     }
 
-    public List<Runnable> createMultiplyTasks() {
-        // creating an array of runnable (tasks) in the size of the leftMatrix dimension
-        List<Runnable> res = new ArrayList<Runnable>(leftMatrix.length());
-        // creating n tasks , where n is the number of rows
-        for (int i = 0 ; i < leftMatrix.length() ; i++) {
-            // Each iteration, the loop "sets" constant index, so when the future task will happen it has specific index.
-            final int index = i;
-            // creating lambda for future task, perform row × matrix for each row in the left matrix.
+    // number of tasks to split work of the given cost (about one unit per elementary operation) into: enough
+    // for every worker to get several tasks, but none smaller than MIN_TASK_COST, whose handoff would cost
+    // more than the work itself
+    private int chunkCount(long cost) {
+        return (int) Math.max(1, Math.min((long) TASKS_PER_WORKER * numThreads, cost / MIN_TASK_COST));
+    }
+
+    public List<Runnable> createMultiplyTasks(SharedMatrix leftMatrix, SharedMatrix rightMatrix, double[] product) {
+        int rows = leftMatrix.rows();
+        int cols = rightMatrix.cols();
+        // starting from cache-sized output tiles, and halving the larger side while there are too few
+        // tiles to keep every worker busy (twice the workers, so uneven tiles even out).
+        int tileRows = GemmKernel.MC;
+        int tileCols = 4 * GemmKernel.MC;
+        // a tile is only halved while both halves are still worth a task of their own
+        int inner = leftMatrix.cols();
+        while (countTiles(rows, tileRows) * countTiles(cols, tileCols) < 2 * numThreads
+                && (tileRows > GemmKernel.MR || tileCols > GemmKernel.NR)
+                && (long) Math.min(rows, tileRows) * Math.min(cols, tileCols) * inner >= MIN_TASK_COST) {
+            if (tileCols > GemmKernel.NR && (tileCols >= tileRows || tileRows <= GemmKernel.MR)) {
+                tileCols /= 2;
+            } else {
+                tileRows /= 2;
+            }
+        }
+        // creating an array of runnable (tasks), one per output tile
+        List<Runnable> res = new ArrayList<Runnable>(countTiles(rows, tileRows) * countTiles(cols, tileCols));
+        for (int i = 0 ; i < rows ; i += tileRows) {
+            for (int j = 0 ; j < cols ; j += tileCols) {
+                // Each iteration, the loop "sets" constant bounds, so when the future task will happen it has a specific tile.
+                final int rowStart = i;
+                final int rowEnd = Math.min(rows, i + tileRows);
+                final int colStart = j;
+                final int colEnd = Math.min(cols, j + tileCols);
+                // no vector locks are taken here: both operands are only read during the batch, and every
+                // task writes its own disjoint tile of product, which is published by the submitAll barrier
+                res.add(() -> GemmKernel.multiplyTile(leftMatrix, rightMatrix, product, rowStart, rowEnd, colStart, colEnd));
+            }
+        }
+        return res;
+    }
+
+    // number of tiles of the given size needed to cover length elements
+    private static int countTiles(int length, int tileSize) {
+        return (length + tileSize - 1) / tileSize;
+    }
+
+    // splits rows [0, rows) into the row blocks of a sparse result, sized by the estimated cost of the whole
+    // node. there are several blocks per worker when the work allows it, since the number of non-zeros
+    // (the work) can be very different from row to row
+    private List<SparseRowBlock> createRowBlocks(int rows, long cost) {
+        int blocks = Math.min(rows, chunkCount(cost + rows));
+        List<SparseRowBlock> res = new ArrayList<SparseRowBlock>(blocks);
+        for (int b = 0 ; b < blocks ; b++) {
+            res.add(new SparseRowBlock((int) ((long) rows * b / blocks), (int) ((long) rows * (b + 1) / blocks)));
+        }
+        return res;
+    }
+
+    public List<Runnable> createSparseAddTasks(SparseMatrix left, SparseMatrix right, double sign, List<SparseRowBlock> blocks) {
+        // one task per row block, each merging its rows of both operands into its own block
+        List<Runnable> res = new ArrayList<Runnable>(blocks.size());
+        for (SparseRowBlock block : blocks) {
+            res.add(() -> SparseKernels.addRows(left, right, sign, block));
+        }
+        return res;
+    }
+
+    public List<Runnable> createSparseToDenseTasks(SparseMatrix sparse, double sign, SharedMatrix dense, boolean negateDense) {
+        // one task per row block. no vector locks: the sparse operand is only read, and every task writes
+        // only its own rows of dense, which nobody else reads until the batch is done
+        List<Runnable> res = new ArrayList<Runnable>();
+        for (SparseRowBlock block : createRowBlocks(sparse.rows(), sparse.nonZeros())) {
+            res.add(() -> SparseKernels.addToDense(sparse, sign, dense, negateDense, block.rowStart(), block.rowEnd()));
+        }
+        return res;
+    }
+
+    public List<Runnable> createSparseMultiplyTasks(SparseMatrix left, SparseMatrix right, List<SparseRowBlock> blocks) {
+        // one task per row block, each computing its rows of the product into its own block
+        List<Runnable> res = new ArrayList<Runnable>(blocks.size());
+        for (SparseRowBlock block : blocks) {
+            res.add(() -> SparseKernels.multiplyRows(left, right, block));
+        }
+        return res;
+    }
+
+    public List<Runnable> createSparseDenseMultiplyTasks(SparseMatrix left, SharedMatrix right, double[] product) {
+        // one task per row block, each writing its own disjoint rows of product
+        List<Runnable> res = new ArrayList<Runnable>();
+        for (SparseRowBlock block : createRowBlocks(left.rows(), 2L * left.nonZeros() * right.cols())) {
+            res.add(() -> SparseKernels.multiplyRows(left, right, product, block.rowStart(), block.rowEnd()));
+        }
+        return res;
+    }
+
+    public List<Runnable> createDenseSparseMultiplyTasks(SharedMatrix left, SparseMatrix right, double[] product) {
+        // one task per row block, each writing its own disjoint rows of product
+        List<Runnable> res = new ArrayList<Runnable>();
+        for (SparseRowBlock block : createRowBlocks(left.rows(), 2L * left.rows() * right.nonZeros())) {
+            res.add(() -> SparseKernels.multiplyRows(left, right, product, block.rowStart(), block.rowEnd()));
+        }
+        return res;
+    }
+
+    public List<Runnable> createSparseNegateTasks(SparseMatrix source, double[] values) {
+        // the non-zeros are split into equal ranges, whatever rows they belong to
+        int nonZeros = values.length;
+        int parts = Math.max(1, Math.min(nonZeros, chunkCount(nonZeros)));
+        List<Runnable> res = new ArrayList<Runnable>(parts);
+        for (int t = 0 ; t < parts ; t++) {
+            final int from = (int) ((long) nonZeros * t / parts);
+            final int to = (int) ((long) nonZeros * (t + 1) / parts);
+            res.add(() -> SparseKernels.negate(source, values, from, to));
+        }
+        return res;
+    }
+
+    public List<Runnable> createNegateTasks(SharedMatrix leftMatrix) {
+        // negating each range of elements of the left matrix in place
+        return createElementwiseTasks(leftMatrix, null, (v1, v2, from, to) -> v1.negate(from, to));
+    }
+
+    // an elementwise kernel over a whole tile: tile[i] = f(tile[i], other[i]) for i in [0, length),
+    // where other is null for unary operators
+    private interface TileKernel {
+        void apply(double[] tile, double[] other, int length);
+    }
+
+    private List<Runnable> createTiledElementwiseTasks(TiledMatrix left, TiledMatrix right, TiledMatrix result, TileKernel kernel) {
+        // the tiles are handed out in ranges of the tile order, each task reading every tile of its range
+        // (and the matching tile of right) into its buffers, applying the kernel and writing it to result.
+        // no locks: the operands are only read, and every task writes its own tiles of result
+        int tileSize = left.tileSize();
+        int tileCols = left.tileCols();
+        int tiles = left.tileRows() * tileCols;
+        int tileLength = tileSize * tileSize;
+        List<Runnable> res = new ArrayList<Runnable>();
+        if (tiles == 0) {
+            return res;
+        }
+        int chunks = Math.min(tiles, chunkCount((long) tiles * tileLength));
+        for (int c = 0 ; c < chunks ; c++) {
+            // Each iteration, the loop "sets" constant bounds, so when the future task will happen it has a specific range.
+            final int start = (int) ((long) tiles * c / chunks);
+            final int end = (int) ((long) tiles * (c + 1) / chunks);
             res.add(() -> {
-                SharedVector v1 = leftMatrix.get(index);
-                // locking left matrix vector to write before multiplying
-                v1.writeLock();
-                // locking all vectors in right matrix for read
-                for (int j = 0 ; j < rightMatrix.length() ; j++) {
-                    rightMatrix.get(j).readLock();
-                }
-                // applying multiply method on vector x rightMatrix
+                double[] tile = pool.acquire(tileLength);
+                double[] other = right == null ? null : pool.acquire(tileLength);
                 try {
-                    v1.vecMatMul(rightMatrix);
-                // unlocking all vectors 
+                    for (int t = start ; t < end ; t++) {
+                        left.readTile(t / tileCols, t % tileCols, tile);
+                        if (right != null) {
+                            right.readTile(t / tileCols, t % tileCols, other);
+                        }
+                        kernel.apply(tile, other, tileLength);
+                        result.writeTile(t / tileCols, t % tileCols, tile);
+                    }
                 } finally {
-                    for (int k = 0 ; k < rightMatrix.length() ; k++) {
-                        rightMatrix.get(k).readUnlock();
+                    pool.release(tile);
+                    if (other != null) {
+                        pool.release(other);
                     }
                 }
-                v1.writeUnlock();
             });
         }
         return res;
     }
 
-    public List<Runnable> createNegateTasks() {
-        // creating an array of runnable (tasks) in the size of the leftMatrix dimension
-        List<Runnable> res = new ArrayList<Runnable>(leftMatrix.length());
-        // creating n tasks , where n is the number of rows
-        for (int i = 0 ; i < leftMatrix.length() ; i++) {
-            // Each iteration, the loop "sets" constant index, so when the future task will happen it has specific index.
-            final int index = i;
-            // creating lambda for future task, perform negate method for each row in the left matrix.
-            res.add(() -> {
-                SharedVector v1 = leftMatrix.get(index);
-                // locking leftMatrix vector for write, performing negate and then unlocking:
-                v1.writeLock();
-                try {
-                    v1.negate();
-                } finally {
-                    v1.writeUnlock();
-                }
-            });
+    public List<Runnable> createTiledMultiplyTasks(TiledMatrix left, TiledMatrix right, TiledMatrix result) {
+        // one task per tile of the product, accumulating left tile (i, k) times right tile (k, j) over every k
+        // with the tiled kernel. every task holds three tiles at a time, and writes its own tile of result
+        int tileSize = left.tileSize();
+        int tileLength = tileSize * tileSize;
+        int inner = left.tileCols();
+        List<Runnable> res = new ArrayList<Runnable>(result.tileRows() * result.tileCols());
+        for (int i = 0 ; i < result.tileRows() ; i++) {
+            for (int j = 0 ; j < result.tileCols() ; j++) {
+                final int ti = i;
+                final int tj = j;
+                res.add(() -> {
+                    double[] a = pool.acquire(tileLength);
+                    double[] b = pool.acquire(tileLength);
+                    double[] product = pool.acquireZeroed(tileLength);
+                    try {
+                        // the tiles are viewed as row-major matrices, refilled for every k
+                        SharedMatrix leftTile = new SharedMatrix();
+                        leftTile.loadRowMajor(a, tileSize, tileSize);
+                        SharedMatrix rightTile = new SharedMatrix();
+                        rightTile.loadRowMajor(b, tileSize, tileSize);
+                        for (int k = 0 ; k < inner ; k++) {
+                            left.readTile(ti, k, a);
+                            right.readTile(k, tj, b);
+                            GemmKernel.multiplyTile(leftTile, rightTile, product, 0, tileSize, 0, tileSize);
+                        }
+                        result.writeTile(ti, tj, product);
+                    } finally {
+                        pool.release(a);
+                        pool.release(b);
+                        pool.release(product);
+                    }
+                });
+            }
         }
         return res;
     }
 
-    public List<Runnable> createTransposeTasks() {
-        // creating an array of runnable (tasks) in the size of the leftMatrix dimension
-        List<Runnable> res = new ArrayList<Runnable>(leftMatrix.length());
-        // creating n tasks , where n is the number of rows
-        for (int i = 0 ; i < leftMatrix.length() ; i++) {
-            // Each iteration, the loop "sets" constant index, so when the future task will happen it has specific index.
-            final int index = i;
-            // creating lambda for future task, perform transpose method for each row in the left matrix.
+    public List<Runnable> createCrossOrientationTasks(SharedMatrix leftMatrix, SharedMatrix rightMatrix, double sign) {
+        // the left vectors are handed out in ranges. each task reads a slice of every right vector, so it
+        // holds all of their read locks, and the write locks of its own left vectors
+        int vectors = leftMatrix.length();
+        int vectorLength = vectors == 0 ? 0 : leftMatrix.get(0).length();
+        long elements = (long) vectors * vectorLength;
+        List<Runnable> res = new ArrayList<Runnable>();
+        if (elements == 0) {
+            return res;
+        }
+        int chunks = Math.min(vectors, chunkCount(elements + vectors * VECTOR_COST));
+        for (int c = 0 ; c < chunks ; c++) {
+            // Each iteration, the loop "sets" constant bounds, so when the future task will happen it has a specific range.
+            final int start = (int) ((long) vectors * c / chunks);
+            final int end = (int) ((long) vectors * (c + 1) / chunks);
             res.add(() -> {
-                SharedVector v1 = leftMatrix.get(index);
-                // locking leftMatrix vector for write, performing transform and then unlocking:
-                v1.writeLock();
+                for (int index = start ; index < end ; index++) {
+                    leftMatrix.get(index).writeLock();
+                }
+                for (int index = 0 ; index < rightMatrix.length() ; index++) {
+                    rightMatrix.get(index).readLock();
+                }
                 try {
-                    v1.transpose();
+                    leftMatrix.addCrossOrientation(rightMatrix, sign, start, end);
                 } finally {
-                    v1.writeUnlock();    
+                    for (int index = 0 ; index < rightMatrix.length() ; index++) {
+                        rightMatrix.get(index).readUnlock();
+                    }
+                    for (int index = start ; index < end ; index++) {
+                        leftMatrix.get(index).writeUnlock();
+                    }
                 }
             });
         }
         return res;
     }
 
+    /**
+     * Stops the engine's workers once the tasks they already hold are done. The engine can't be used afterwards.
+     */
+    public void shutdown() throws InterruptedException {
+        executor.shutdown();
+        orchestrator.shutdown();
+    }
+
     public String getWorkerReport() {
         // calling the executer report method
         return executor.getWorkerReport();
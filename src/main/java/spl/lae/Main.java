@@ -1,40 +1,201 @@
 package spl.lae;
 
 import java.io.IOException;
+import java.nio.file.Path;
 
-import parser.ComputationNode;
-import parser.InputParser;
+import memory.Kernels;
+import memory.SparseMatrix;
+import memory.TileStore;
+import memory.VectorKernels;
 import parser.OutputWriter;
+import scheduling.SchedulingMode;
+import scheduling.ThreadMode;
 
 public class Main {
   public static void main(String[] args) throws IOException {
     // making sure we got 3 arugments as required: num of threads, input path ,
-    // output path
+    // output path - or num of threads, a batch mode and its source (see runBatch)
     if (args.length != 3) {
-      System.err.println("given input is not in right format: required: num of threads, input path , output path");
+      System.err.println("given input is not in right format: required: num of threads, input path , output path"
+          + " (or num of threads, --manifest file | --spool directory | --socket path)");
       return;
     }
     int numOfThreads;
     String inputPath = args[1];
     String outputPath = args[2];
+    // result file layout, selected with -Dlae.output=pretty|compact|binary
+    OutputWriter.Format format = outputFormat();
+    // matrices with at most this fraction of non-zeros are stored sparse, -Dlae.sparse.density=0 disables it
+    double sparseDensity = sparseDensity();
+    // inner loops of the dense operators, selected with -Dlae.kernels=simd|scalar
+    selectKernels();
 
+    if (inputPath.startsWith("--")) {
+      runBatch(args, format, sparseDensity);
+      return;
+    }
+    LinearAlgebraEngine lae = null;
     try {
       // might throw an error if its not int
       numOfThreads = Integer.parseInt(args[0]);
-      InputParser parser = new InputParser();
-      // loading root to be given root from input path
-      ComputationNode root = parser.parse(inputPath);
-      // initializing LAE engine and starting calculation
-      LinearAlgebraEngine lae = new LinearAlgebraEngine(numOfThreads);
-      // keeping answer in res
-      ComputationNode res = lae.run(root);
-      // converting result root into a double[][]matrix
-      double[][] resultMat = res.getMatrix();
-      // writing the result in output
-      OutputWriter.write(resultMat, outputPath);
+      // initializing LAE engine. results kept for later runs on the same engine, -Dlae.cache.mb
+      // (a single run only shares repeated subtrees), idle intermediate storage, -Dlae.pool.mb,
+      // out-of-core execution, -Dlae.spill.dir, and the intermediate memory budget, -Dlae.memory.mb (see newEngine)
+      lae = newEngine(numOfThreads);
+      // parsing, calculating and writing the result (or the error) in output
+      BatchRunner.runJob(lae, sparseDensity, format, inputPath, outputPath);
     } catch (Exception e) {
       // logging errors on output
-      OutputWriter.write(e.getMessage(), outputPath);
+      OutputWriter.write(e.getMessage(), outputPath, format);
+    } finally {
+      shutdown(lae);
+    }
+  }
+
+  // runs a stream of jobs on one engine: "--manifest file", "--spool directory" or "--socket path".
+  // at most -Dlae.jobs jobs run at the same time, one per worker thread by default. with -Dlae.threads=virtual
+  // (jobs on virtual threads) a waiting job costs little more than its parsed input, so more jobs can be let
+  // in flight - but nothing bounds the memory of those inputs, so that is left to an explicit -Dlae.jobs
+  private static void runBatch(String[] args, OutputWriter.Format format, double sparseDensity) {
+    String mode = args[1];
+    Path source = Path.of(args[2]);
+    LinearAlgebraEngine lae = null;
+    try {
+      int numOfThreads = Integer.parseInt(args[0]);
+      ThreadMode threadMode = threadMode();
+      int maxJobs = Integer.getInteger("lae.jobs", numOfThreads);
+      lae = newEngine(numOfThreads);
+      try (BatchRunner runner = new BatchRunner(lae, maxJobs, sparseDensity, format, threadMode)) {
+        if (mode.equals("--manifest")) {
+          int failures = runner.runManifest(source);
+          if (failures > 0) {
+            System.err.println(failures + " jobs failed");
+          }
+        } else if (mode.equals("--spool")) {
+          runner.runSpool(source);
+        } else if (mode.equals("--socket")) {
+          runner.runSocket(source);
+        } else {
+          System.err.println("unknown batch mode " + mode + ": expected --manifest, --spool or --socket");
+        }
+      }
+      // the runner already shut the engine down
+      lae = null;
+    } catch (Exception e) {
+      System.err.println("batch failed: " + e.getMessage());
+    } finally {
+      shutdown(lae);
+    }
+  }
+
+  // with -Dlae.spill.dir=directory jobs run out of core: their matrices are kept in memory-mapped files
+  // under that directory, in tiles of -Dlae.spill.tile x -Dlae.spill.tile elements, instead of the heap
+  private static LinearAlgebraEngine newEngine(int numOfThreads) {
+    String spillDir = System.getProperty("lae.spill.dir");
+    int tileSize = Integer.getInteger("lae.spill.tile", TileStore.DEFAULT_TILE_SIZE);
+    if (tileSize <= 0) {
+      System.err.println("invalid tile size " + tileSize + ", using " + TileStore.DEFAULT_TILE_SIZE);
+      tileSize = TileStore.DEFAULT_TILE_SIZE;
+    }
+    return new LinearAlgebraEngine(numOfThreads, Long.getLong("lae.cache.mb", 0) << 20, schedulingMode(), poolBytes(),
+        spillDir == null ? null : Path.of(spillDir), tileSize, memoryBudget());
+  }
+
+  // stopping the engine's workers, so the JVM can exit
+  private static void shutdown(LinearAlgebraEngine lae) {
+    if (lae == null) {
+      return;
+    }
+    try {
+      lae.shutdown();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static double sparseDensity() {
+    String value = System.getProperty("lae.sparse.density");
+    if (value == null) {
+      return SparseMatrix.DEFAULT_SPARSE_DENSITY;
+    }
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      System.err.println("invalid sparse density " + value + ", using " + SparseMatrix.DEFAULT_SPARSE_DENSITY);
+      return SparseMatrix.DEFAULT_SPARSE_DENSITY;
+    }
+  }
+
+  // idle intermediate storage the engine keeps for reuse, -Dlae.pool.mb. off by default (0): the idle
+  // buffers stay in the heap for as long as the engine runs, which a daemon has to opt in to
+  private static long poolBytes() {
+    String value = System.getProperty("lae.pool.mb");
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(value) << 20;
+    } catch (NumberFormatException e) {
+      System.err.println("invalid pool size " + value + ", using no pool");
+      return 0;
+    }
+  }
+
+  // intermediate results a run keeps alive at a time, -Dlae.memory.mb. by default there is no limit (0)
+  private static long memoryBudget() {
+    String value = System.getProperty("lae.memory.mb");
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return Math.max(0, Long.parseLong(value)) << 20;
+    } catch (NumberFormatException e) {
+      System.err.println("invalid memory budget " + value + ", using no limit");
+      return 0;
+    }
+  }
+
+  private static void selectKernels() {
+    String value = System.getProperty("lae.kernels", "scalar");
+    try {
+      VectorKernels kernels = Kernels.select(value);
+      if (!kernels.name().equalsIgnoreCase(value)) {
+        System.err.println("simd kernels need --add-modules jdk.incubator.vector, using " + kernels.name());
+      }
+    } catch (IllegalArgumentException e) {
+      System.err.println("unknown kernels " + value + ", using scalar");
+    }
+  }
+
+  // how tasks are placed on workers, selected with -Dlae.scheduling=fatigue|calibrated
+  private static SchedulingMode schedulingMode() {
+    String value = System.getProperty("lae.scheduling", "fatigue");
+    try {
+      return SchedulingMode.valueOf(value.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.err.println("unknown scheduling mode " + value + ", using fatigue");
+      return SchedulingMode.FATIGUE;
+    }
+  }
+
+  // threads running the jobs of a batch, selected with -Dlae.threads=platform|virtual
+  private static ThreadMode threadMode() {
+    String value = System.getProperty("lae.threads", "platform");
+    try {
+      return ThreadMode.valueOf(value.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.err.println("unknown thread mode " + value + ", using platform");
+      return ThreadMode.PLATFORM;
+    }
+  }
+
+  private static OutputWriter.Format outputFormat() {
+    String value = System.getProperty("lae.output", "pretty");
+    try {
+      return OutputWriter.Format.valueOf(value.toUpperCase());
+    } catch (IllegalArgumentException e) {
+      System.err.println("unknown output format " + value + ", using pretty");
+      return OutputWriter.Format.PRETTY;
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,155 @@
+package spl.lae;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * Memory-aware evaluation order of a computation tree, in the style of Sethi-Ullman register allocation with
+ * matrix sizes as weights. Every computed node gets the bytes it allocates for its result (nothing when it is
+ * computed in place or is a view), the bytes its result keeps alive until its parent is done with it, and the
+ * peak of intermediate bytes its whole subtree needs. Children are ordered so the one needing the most memory
+ * beyond what it leaves alive goes first, which minimizes the peak of a one-node-at-a-time evaluation - the
+ * predicted peak. Nodes are ranked in that order (children before their parents), and the engine starts
+ * ready nodes by rank. Input matrices are not counted, and intermediates are predicted dense. Out-of-core
+ * results are stored in files rather than in the heap, and are not counted either.
+ */
+public class MemoryPlan {
+
+    // what the plan knows about one node
+    private static class NodeInfo {
+        int rows;
+        int cols;
+        long allocBytes; // allocated for the result when the node is computed
+        long liveBytes; // held by the result until the parent is done with it
+        long needBytes; // peak while the node's subtree is evaluated, by the plan's order
+        boolean shared; // the result is read elsewhere as well, so its consumer can't write it in place
+        boolean tiled; // the result is stored out of core
+        List<ComputationNode> order = List.of(); // the children in evaluation order
+        int rank;
+    }
+
+    private final Map<ComputationNode, NodeInfo> infos = new IdentityHashMap<>();
+    private final long predictedPeakBytes;
+    private final boolean cachesProducts;
+
+    /**
+     * Plans the tree rooted at root. computed holds the nodes the run computes: the others are input matrices,
+     * results cached by earlier runs and aliases of a computed node, none of which allocates anything.
+     * shared holds the computed nodes whose result is also referenced elsewhere, which are never written in place,
+     * and so are products when cachesProducts is set (the engine's result cache keeps them).
+     */
+    public MemoryPlan(ComputationNode root, Map<ComputationNode, ?> computed, Map<ComputationNode, ?> shared,
+                      boolean cachesProducts) {
+        this.cachesProducts = cachesProducts;
+        NodeInfo rootInfo = analyze(root, computed, shared);
+        this.predictedPeakBytes = rootInfo.needBytes;
+        assignRanks(root, new int[1]);
+    }
+
+    // the position of a computed node in the evaluation order
+    public int rank(ComputationNode node) {
+        NodeInfo info = infos.get(node);
+        return info == null ? Integer.MAX_VALUE : info.rank;
+    }
+
+    // the bytes the plan expects a computed node to allocate for its result
+    public long allocBytes(ComputationNode node) {
+        NodeInfo info = infos.get(node);
+        return info == null ? 0 : info.allocBytes;
+    }
+
+    // the peak of live intermediate bytes when the nodes are computed one at a time, by rank
+    public long predictedPeakBytes() {
+        return predictedPeakBytes;
+    }
+
+    private NodeInfo analyze(ComputationNode node, Map<ComputationNode, ?> computed, Map<ComputationNode, ?> shared) {
+        NodeInfo info = new NodeInfo();
+        infos.put(node, info);
+        if (node.getNodeType() == ComputationNodeType.MATRIX) {
+            info.rows = LinearAlgebraEngine.resultRows(node);
+            info.cols = LinearAlgebraEngine.resultCols(node);
+            info.shared = node.isShared();
+            info.tiled = node.isTiled();
+            return info;
+        }
+        List<ComputationNode> children = node.getChildren();
+        List<NodeInfo> childInfos = new ArrayList<>(children.size());
+        for (ComputationNode child : children) {
+            childInfos.add(analyze(child, computed, shared));
+        }
+        NodeInfo left = childInfos.get(0);
+        // dimensions of the operands as the node reads them (a folded transpose swaps them)
+        int leftRows = children.get(0).isTransposed() ? left.cols : left.rows;
+        int leftCols = children.get(0).isTransposed() ? left.rows : left.cols;
+        switch (node.getNodeType()) {
+            case MULTIPLY: {
+                NodeInfo right = childInfos.get(childInfos.size() - 1);
+                info.rows = leftRows;
+                info.cols = children.get(children.size() - 1).isTransposed() ? right.rows : right.cols;
+                break;
+            }
+            case TRANSPOSE:
+                info.rows = leftCols;
+                info.cols = leftRows;
+                break;
+            default:
+                info.rows = leftRows;
+                info.cols = leftCols;
+        }
+        // the operands of a node are all in the heap or all out of core
+        info.tiled = left.tiled;
+        // a transpose is a view, read wherever its operand is
+        info.shared = shared.containsKey(node)
+                || (cachesProducts && node.getNodeType() == ComputationNodeType.MULTIPLY && !info.tiled)
+                || (node.getNodeType() == ComputationNodeType.TRANSPOSE && left.shared);
+        if (!computed.containsKey(node)) {
+            // an alias holds the storage of the node it is resolved from, and shares it
+            info.shared = true;
+            return info;
+        }
+        long bytes = info.tiled ? 0 : (long) info.rows * info.cols * Double.BYTES;
+        boolean inPlace = node.getNodeType() != ComputationNodeType.MULTIPLY && !left.shared
+                && !children.get(0).isSparse();
+        if (node.getNodeType() == ComputationNodeType.TRANSPOSE || inPlace) {
+            // a view of its operand, or written into the operand it takes over
+            info.allocBytes = 0;
+            info.liveBytes = left.liveBytes;
+        } else {
+            info.allocBytes = bytes;
+            info.liveBytes = bytes;
+        }
+        // the child whose evaluation needs the most beyond what its result keeps alive goes first
+        List<ComputationNode> order = new ArrayList<>(children);
+        order.sort((a, b) -> Long.compare(excess(infos.get(b)), excess(infos.get(a))));
+        long held = 0;
+        long need = 0;
+        for (ComputationNode child : order) {
+            NodeInfo childInfo = infos.get(child);
+            need = Math.max(need, held + childInfo.needBytes);
+            held += childInfo.liveBytes;
+        }
+        // while the node itself is computed, all its operands and its own result are alive
+        info.needBytes = Math.max(need, held + info.allocBytes);
+        info.order = order;
+        return info;
+    }
+
+    private static long excess(NodeInfo info) {
+        return info.needBytes - info.liveBytes;
+    }
+
+    // numbers the nodes in evaluation order: every child (in the plan's order) before its parent
+    private void assignRanks(ComputationNode node, int[] next) {
+        NodeInfo info = infos.get(node);
+        for (ComputationNode child : info.order) {
+            assignRanks(child, next);
+        }
+        info.rank = next[0]++;
+    }
+}
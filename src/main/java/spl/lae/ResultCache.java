@@ -0,0 +1,86 @@
+package spl.lae;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import parser.ComputationNode;
+
+/**
+ * Bounded least-recently-used cache of computed results, keyed by the SubtreeHash of the subtree
+ * that computed them. It lives as long as the engine, so a later run reuses results of an earlier one.
+ * Cached matrices are shared with every node resolved from them, so they must never be written in place
+ * (see ComputationNode.isShared).
+ */
+public class ResultCache {
+
+    // iterated from the least to the most recently used entry
+    private final LinkedHashMap<SubtreeHash, ComputationNode> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long capacityBytes;
+    private long sizeBytes = 0;
+    // a lock rather than synchronized methods, so a virtual thread waiting for it does not pin its carrier
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public ResultCache(long capacityBytes) {
+        this.capacityBytes = capacityBytes;
+    }
+
+    public boolean isEnabled() {
+        return capacityBytes > 0;
+    }
+
+    // returns the resolved node holding the cached result, or null
+    public ComputationNode get(SubtreeHash hash) {
+        lock.lock();
+        try {
+            return entries.get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Caches a resolved node's result, evicting the least recently used results while over capacity.
+     * A result larger than the whole cache is not kept.
+     */
+    public void put(SubtreeHash hash, ComputationNode resolved) {
+        long bytes = sizeOf(resolved);
+        if (bytes > capacityBytes) {
+            return;
+        }
+        lock.lock();
+        try {
+            ComputationNode previous = entries.put(hash, resolved);
+            if (previous != null) {
+                sizeBytes -= sizeOf(previous);
+            }
+            sizeBytes += bytes;
+            Iterator<Map.Entry<SubtreeHash, ComputationNode>> eldest = entries.entrySet().iterator();
+            while (sizeBytes > capacityBytes && eldest.hasNext()) {
+                sizeBytes -= sizeOf(eldest.next().getValue());
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // approximate memory held by a resolved node's matrix
+    private static long sizeOf(ComputationNode resolved) {
+        if (resolved.isSparse()) {
+            // values and indices per non-zero, and a pointer per vector
+            return 12L * resolved.getSparseMatrix().nonZeros() + 4L * (resolved.getSparseMatrix().rows() + 1);
+        }
+        return 8L * resolved.getSharedMatrix().rows() * resolved.getSharedMatrix().cols();
+    }
+}
@@ -0,0 +1,70 @@
+package spl.lae;
+
+import java.util.List;
+import java.util.Map;
+
+import memory.ContentHash;
+import parser.ComputationNode;
+import parser.ComputationNodeType;
+
+/**
+ * 128-bit structural hash of a computation subtree: the hash of a matrix leaf is the hash of its contents,
+ * and the hash of an operation combines its operator with its children's hashes, in order, together with
+ * whether each child is read transposed. Two subtrees with the same hash compute the same matrix.
+ */
+public final class SubtreeHash {
+
+    private final long high;
+    private final long low;
+
+    private SubtreeHash(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public static SubtreeHash ofLeaf(ComputationNode leaf) {
+        if (leaf.isTiled()) {
+            // an out-of-core matrix is too large to read just to hash it, so every one is hashed as distinct
+            long id = leaf.getTiledMatrix().id();
+            return new SubtreeHash(ContentHash.mix(id + 0x5851F42D4C957F2DL), ContentHash.mix(~id));
+        }
+        long[] hash = leaf.isSparse() ? ContentHash.of(leaf.getSparseMatrix()) : ContentHash.of(leaf.getSharedMatrix());
+        return new SubtreeHash(hash[0], hash[1]);
+    }
+
+    /**
+     * Hashes an operation node whose children have all been hashed already.
+     */
+    public static SubtreeHash ofOperation(ComputationNode node, Map<ComputationNode, SubtreeHash> hashes) {
+        ComputationNodeType type = node.getNodeType();
+        long high = ContentHash.mix(type.ordinal() + 0x632BE59BD9B4E019L);
+        long low = ContentHash.mix(type.ordinal() * 0x85157AF5L + 0x3C6EF372FE94F82BL);
+        List<ComputationNode> children = node.getChildren();
+        for (ComputationNode child : children) {
+            SubtreeHash childHash = hashes.get(child);
+            long flag = child.isTransposed() ? 1 : 0;
+            high = ContentHash.mix(high * 31 + childHash.high + flag);
+            low = ContentHash.mix(Long.rotateLeft(low, 17) ^ childHash.low ^ (flag << 63));
+        }
+        return new SubtreeHash(high, low);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SubtreeHash)) {
+            return false;
+        }
+        SubtreeHash hash = (SubtreeHash) other;
+        return high == hash.high && low == hash.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (high ^ (high >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016x%016x", high, low);
+    }
+}